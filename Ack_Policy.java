@@ -0,0 +1,118 @@
+/*
+ * Sistemas de Telecomunicacoes
+ *          2022/2023
+ */
+package protocol;
+
+/**
+ * Acknowledgement policy used by the receivers to decide when a data frame
+ * is acknowledged: immediately, every N frames, when the ack timer expires, or
+ * only piggybacked in data frames.
+ */
+public class Ack_Policy {
+
+    /**
+     * Policy modes
+     */
+    public static final int IMMEDIATE = 0;
+    public static final int EVERY_N = 1;
+    public static final int DELAYED = 2;
+    public static final int PIGGYBACK_ONLY = 3;
+
+    /**
+     * Actions requested to the receiver
+     */
+    public static final int NOTHING = 0;
+    public static final int SEND_ACK = 1;
+    public static final int START_TIMER = 2;
+
+    /**
+     * @param mode IMMEDIATE, EVERY_N, DELAYED or PIGGYBACK_ONLY
+     * @param n number of frames acknowledged by each ACK in EVERY_N mode
+     * @param ack_out_of_order true to acknowledge immediately frames received
+     * out of order (duplicates), whatever the mode
+     */
+    public Ack_Policy(int mode, int n, boolean ack_out_of_order) {
+        if (mode < IMMEDIATE || mode > PIGGYBACK_ONLY || n < 1) {
+            throw new IllegalArgumentException("Invalid ACK policy: mode " + mode + " n " + n);
+        }
+        this.mode = mode;
+        this.n = n;
+        this.ack_out_of_order = ack_out_of_order;
+        unacked = 0;
+    }
+
+    /**
+     * @param mode IMMEDIATE, DELAYED or PIGGYBACK_ONLY
+     */
+    public Ack_Policy(int mode) {
+        this(mode, 1, false);
+    }
+
+    /**
+     * Called for every data frame received
+     *
+     * @param in_order true if the frame was the one expected
+     * @return action to take: NOTHING, SEND_ACK or START_TIMER
+     */
+    public int on_data_frame(boolean in_order) {
+        if (mode == PIGGYBACK_ONLY) {
+            return NOTHING;
+        }
+        if (!in_order && ack_out_of_order) {
+            return SEND_ACK;
+        }
+        switch (mode) {
+            case IMMEDIATE:
+                return SEND_ACK;
+            case EVERY_N:
+                if (in_order && ++unacked >= n) {
+                    return SEND_ACK;
+                }
+                return START_TIMER;     // o timer confirma o resto
+            default:
+                return START_TIMER;
+        }
+    }
+
+    /**
+     * @return true if a standalone ACK frame is sent when the ack timer
+     * expires
+     */
+    public boolean ack_on_timer() {
+        return mode != PIGGYBACK_ONLY;
+    }
+
+    /**
+     * Called when an acknowledgement leaves the receiver, in an ACK frame or
+     * piggybacked in a data frame
+     */
+    public void on_ack_sent() {
+        unacked = 0;
+    }
+
+    /**
+     * @return policy mode
+     */
+    public int mode() {
+        return mode;
+    }
+
+    /* Variables */
+    /**
+     * Policy mode
+     */
+    private final int mode;
+    /**
+     * Frames per ACK in EVERY_N mode
+     */
+    private final int n;
+    /**
+     * Acknowledge out of order frames immediately
+     */
+    private final boolean ack_out_of_order;
+    /**
+     * In order frames received since the last ACK
+     */
+    private int unacked;
+}
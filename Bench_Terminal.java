@@ -0,0 +1,213 @@
+/*
+ * Sistemas de Telecomunicacoes
+ *          2022/2023
+ */
+package protocol;
+
+import java.util.BitSet;
+import simulator.Frame;
+import terminal.NetworkLayer;
+import terminal.Simulator;
+
+/**
+ * Lightweight in-memory fake of the simulator and of the network layer, used
+ * by Protocol_Bench to call the protocol callbacks without the Terminal.
+ *
+ * It keeps only the state the protocols query: the frame being transmitted,
+ * the timers running and the packets given to and taken from the network
+ * layer. Log messages are discarded and packets are one preallocated String,
+ * so the fake itself does not allocate.
+ */
+public class Bench_Terminal implements Simulator, NetworkLayer {
+
+    /**
+     * @param max_sequence highest sequence number
+     * @param send_window sending window
+     * @param packet_size size of the packets given to the protocol
+     */
+    public Bench_Terminal(int max_sequence, int send_window, int packet_size) {
+        this.max_sequence = max_sequence;
+        this.send_window = send_window;
+        StringBuilder sb = new StringBuilder(packet_size);
+        for (int i = 0; i < packet_size; i++) {
+            sb.append((char) ('a' + i % 26));
+        }
+        packet = sb.toString();
+        data_timers = new BitSet(max_sequence + 1);
+        reset();
+    }
+
+    /**
+     * Clears all the state before a new run
+     */
+    public final void reset() {
+        data_timers.clear();
+        ack_timer = false;
+        sending = false;
+        last_frame = null;
+        frames_sent = 0;
+        packets_sent = 0;
+        packets_delivered = 0;
+        stopped = false;
+    }
+
+    /* Simulator */
+    @Override
+    public void Log(String s) {
+        // descartado
+    }
+
+    @Override
+    public int get_max_sequence() {
+        return max_sequence;
+    }
+
+    @Override
+    public int get_send_window() {
+        return send_window;
+    }
+
+    @Override
+    public boolean is_sending_data() {
+        return sending;
+    }
+
+    @Override
+    public boolean to_physical_layer(Frame frame, boolean interrupt) {
+        if (sending && !interrupt) {
+            return false;
+        }
+        frames_sent++;
+        if (frame.kind() == Frame.DATA_FRAME) {
+            last_frame = frame;
+            sending = true;
+        }
+        return true;
+    }
+
+    @Override
+    public void start_data_timer(int key) {
+        data_timers.set(key);
+    }
+
+    @Override
+    public void cancel_data_timer(int key) {
+        data_timers.clear(key);
+    }
+
+    @Override
+    public boolean isactive_data_timer(int key) {
+        return data_timers.get(key);
+    }
+
+    @Override
+    public void start_ack_timer() {
+        ack_timer = true;
+    }
+
+    @Override
+    public void cancel_ack_timer() {
+        ack_timer = false;
+    }
+
+    @Override
+    public void stop() {
+        stopped = true;
+    }
+
+    /* NetworkLayer */
+    @Override
+    public String from_network_layer() {
+        packets_sent++;
+        return packet;
+    }
+
+    @Override
+    public boolean has_more_packets_to_send() {
+        return true;
+    }
+
+    @Override
+    public int get_recvbuffsize() {
+        return send_window;
+    }
+
+    @Override
+    public boolean to_network_layer(String p) {
+        packets_delivered++;
+        return true;
+    }
+
+    /* Driver side */
+    /**
+     * Takes the last data frame given to the physical layer and ends its
+     * transmission
+     *
+     * @return the frame, or null if none was sent since the last call
+     */
+    public Frame take_frame() {
+        Frame f = last_frame;
+        last_frame = null;
+        sending = false;
+        return f;
+    }
+
+    /**
+     * @return true if the protocol called stop() since the last reset()
+     */
+    public boolean stopped() {
+        return stopped;
+    }
+
+    /**
+     * @return lowest key of the data timers running, or -1 if none
+     */
+    public int first_data_timer() {
+        return data_timers.nextSetBit(0);
+    }
+
+    /**
+     * Stops a data timer that the driver is about to fire
+     *
+     * @param key timer key
+     */
+    public void expire_data_timer(int key) {
+        data_timers.clear(key);
+    }
+
+    /**
+     * @return true if the ack timer is running; it is stopped
+     */
+    public boolean expire_ack_timer() {
+        boolean on = ack_timer;
+        ack_timer = false;
+        return on;
+    }
+
+    /* Variables */
+    private final int max_sequence;
+    private final int send_window;
+    /**
+     * Payload returned for every packet
+     */
+    private final String packet;
+    /**
+     * Data timers running, indexed by key
+     */
+    private final BitSet data_timers;
+    private boolean ack_timer;
+    /**
+     * True while a data frame is being transmitted
+     */
+    private boolean sending;
+    /**
+     * Last data frame given to the physical layer and not yet taken by the
+     * driver
+     */
+    private Frame last_frame;
+    private boolean stopped;
+    /**
+     * Counters
+     */
+    long frames_sent, packets_sent, packets_delivered;
+}
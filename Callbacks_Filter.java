@@ -0,0 +1,57 @@
+/*
+ * Sistemas de Telecomunicacoes
+ *          2022/2023
+ */
+package protocol;
+
+import simulator.Frame;
+
+/**
+ * Callbacks that forward every event to a protocol instance. Layers placed
+ * between the simulator and a protocol extend it and override only the
+ * events they observe or change.
+ */
+public class Callbacks_Filter implements Callbacks {
+
+    /**
+     * @param protocol protocol that receives the events
+     */
+    public Callbacks_Filter(Callbacks protocol) {
+        this.protocol = protocol;
+    }
+
+    @Override
+    public void start_simulation(long time) {
+        protocol.start_simulation(time);
+    }
+
+    @Override
+    public void handle_Data_end(long time, int seq) {
+        protocol.handle_Data_end(time, seq);
+    }
+
+    @Override
+    public void handle_Data_Timer(long time, int key) {
+        protocol.handle_Data_Timer(time, key);
+    }
+
+    @Override
+    public void handle_ack_Timer(long time) {
+        protocol.handle_ack_Timer(time);
+    }
+
+    @Override
+    public void from_physical_layer(long time, Frame frame) {
+        protocol.from_physical_layer(time, frame);
+    }
+
+    @Override
+    public void end_simulation(long time) {
+        protocol.end_simulation(time);
+    }
+
+    /**
+     * Protocol above this layer
+     */
+    protected final Callbacks protocol;
+}
@@ -0,0 +1,213 @@
+/*
+ * Sistemas de Telecomunicacoes
+ *          2022/2023
+ */
+package protocol;
+
+import java.util.function.Supplier;
+import simulator.Frame;
+import terminal.Simulator;
+
+/**
+ * Payload coding below the protocols: the payload of each data frame is
+ * encoded by a Payload_Codec (e.g. Deflate_Codec) before it is sent and
+ * decoded when it is received, so the frames are shorter on the wire and take
+ * less time to transmit. ACK and NAK frames are not changed.
+ *
+ * The layer is placed around the protocol (see coded()), like Fec_Layer, and
+ * both ends must use it with the same codec. Each protocol instance gets its
+ * own codec from the supplier, since the codecs keep buffers between frames.
+ * With fec.protect(codec.coded(f)) the payloads are compressed before the
+ * parity is computed.
+ *
+ * The layer counts the payload bytes before and after coding and the time
+ * spent in the codec, to compare the CPU cost with the airtime saved.
+ */
+public class Codec_Layer {
+
+    /**
+     * @param codecs builds the codec of each protocol instance
+     */
+    public Codec_Layer(Supplier<? extends Payload_Codec> codecs) {
+        this.codecs = codecs;
+        frames = 0;
+        raw_bytes = 0;
+        coded_bytes = 0;
+        encode_ns = 0;
+        decode_ns = 0;
+        errors = 0;
+    }
+
+    /**
+     * Returns a factory that builds the protocol of f with this codec layer
+     * around it
+     *
+     * @param f factory of the protocol
+     * @return factory of the protocol with coded payloads
+     */
+    public Protocol_Factory coded(Protocol_Factory f) {
+        return (sim, net) -> {
+            Payload_Codec codec = codecs.get();
+            Encoder enc = new Encoder(sim, codec);
+            return new Decoder(f.create(enc, net), enc, codec);
+        };
+    }
+
+    /**
+     * @return data frames encoded
+     */
+    public long frames() {
+        return frames;
+    }
+
+    /**
+     * @return coded payload bytes per original payload byte
+     */
+    public double ratio() {
+        return raw_bytes > 0 ? (double) coded_bytes / raw_bytes : 1;
+    }
+
+    /**
+     * @return payload bytes saved on the wire
+     */
+    public long saved_bytes() {
+        return raw_bytes - coded_bytes;
+    }
+
+    /**
+     * @return nanoseconds spent encoding and decoding, per frame encoded
+     */
+    public double ns_per_frame() {
+        return frames > 0 ? (double) (encode_ns + decode_ns) / frames : 0;
+    }
+
+    /**
+     * @return received payloads that could not be decoded, and were dropped
+     */
+    public long errors() {
+        return errors;
+    }
+
+    /**
+     * @return text with the compression ratio and the time spent
+     */
+    @Override
+    public String toString() {
+        return String.format("Codec: %d frames, %d -> %d payload bytes (%.1f%%), "
+                + "encode %.1f us, decode %.1f us, %.0f ns per frame, %d errors",
+                frames, raw_bytes, coded_bytes, 100 * ratio(),
+                encode_ns / 1e3, decode_ns / 1e3, ns_per_frame(), errors);
+    }
+
+    /**
+     * Layer between the protocol and the simulator: encodes the payload of the
+     * data frames
+     */
+    private class Encoder extends Simulator_Filter {
+
+        Encoder(Simulator sim, Payload_Codec codec) {
+            super(sim);
+            this.codec = codec;
+        }
+
+        @Override
+        public boolean to_physical_layer(Frame frame, boolean interrupt) {
+            if (frame.kind() != Frame.DATA_FRAME) {
+                return sim.to_physical_layer(frame, interrupt);
+            }
+            long t0 = System.nanoTime();
+            String info = codec.encode(frame.info());
+            encode_ns += System.nanoTime() - t0;
+            if (!sim.to_physical_layer(Frame.new_Data_Frame(frame.seq(), frame.ack(), frame.rcvbufsize(), info), interrupt)) {
+                return false;
+            }
+            frames++;
+            raw_bytes += frame.info().length();
+            coded_bytes += info.length();
+            return true;
+        }
+
+        final Payload_Codec codec;
+    }
+
+    /**
+     * Layer between the simulator and the protocol: decodes the payload of
+     * the data frames received
+     */
+    private class Decoder extends Callbacks_Filter {
+
+        Decoder(Callbacks protocol, Encoder enc, Payload_Codec codec) {
+            super(protocol);
+            this.enc = enc;
+            this.codec = codec;
+        }
+
+        @Override
+        public void from_physical_layer(long time, Frame frame) {
+            if (frame.kind() != Frame.DATA_FRAME) {
+                protocol.from_physical_layer(time, frame);
+                return;
+            }
+            String info;
+            long t0 = System.nanoTime();
+            try {
+                info = codec.decode(frame.info());
+            } catch (IllegalArgumentException e) {
+                errors++;   // tratado como trama perdida
+                enc.Log(time + " undecodable payload: " + e.getMessage() + "\n");
+                return;
+            } finally {
+                decode_ns += System.nanoTime() - t0;
+            }
+            protocol.from_physical_layer(time, Frame.new_Data_Frame(frame.seq(), frame.ack(), frame.rcvbufsize(), info));
+        }
+
+        @Override
+        public void end_simulation(long time) {
+            protocol.end_simulation(time);
+            enc.Log(Codec_Layer.this.toString() + "\n");
+        }
+
+        final Encoder enc;
+        final Payload_Codec codec;
+    }
+
+    /**
+     * Runs a protocol in the local simulator with and without the Deflate
+     * codec and prints the transfer time and the compression
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: java protocol.Codec_Layer protocol [packets] [bit_rate] [packet_size]");
+            return;
+        }
+        Local_Simulator.Config config = new Local_Simulator.Config();
+        config.packets_a = args.length > 1 ? Integer.parseInt(args[1]) : config.packets_a;
+        config.bit_rate = args.length > 2 ? Long.parseLong(args[2]) : 64000;
+        config.packet_size = args.length > 3 ? Integer.parseInt(args[3]) : config.packet_size;
+        Protocol_Factory f = Local_Simulator.factory(args[0]);
+        Codec_Layer codec = new Codec_Layer(() -> new Deflate_Codec(DICTIONARY));
+        Local_Simulator plain = new Local_Simulator(config, f, f);
+        long t_plain = plain.run();
+        Local_Simulator coded = new Local_Simulator(config, codec.coded(f), codec.coded(f));
+        long t_coded = coded.run();
+        System.out.printf("%s, %d bit/s, %d byte packets: %d ms without codec, %d ms with codec (%d/%d packets delivered)%n",
+                args[0], config.bit_rate, config.packet_size, t_plain, t_coded, coded.side_b().delivered, config.packets_a);
+        System.out.println(codec);
+    }
+
+    /**
+     * Dictionary matching the padding of the generated packets
+     */
+    static final String DICTIONARY = "abcdefghijklmnopqrstuvwxyz";
+
+    /* Variables */
+    /**
+     * Builds the codec of each protocol instance
+     */
+    private final Supplier<? extends Payload_Codec> codecs;
+    /**
+     * Compression and CPU counters
+     */
+    private long frames, raw_bytes, coded_bytes, encode_ns, decode_ns, errors;
+}
@@ -0,0 +1,156 @@
+/*
+ * Sistemas de Telecomunicacoes
+ *          2022/2023
+ */
+package protocol;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Payload codec that compresses with Deflate (raw, without the zlib header)
+ * and a preset dictionary, so that even a short payload is compressed against
+ * text typical of the traffic.
+ *
+ * The encoded payload starts with 'Z' followed by the compressed bytes, one
+ * char per byte (ISO-8859-1), or with 'R' followed by the original payload
+ * when compressing does not make it shorter. Both ends must use the same
+ * dictionary.
+ *
+ * The Deflater, the Inflater and the byte buffers are reused between frames;
+ * only the resulting strings are allocated. Not thread safe.
+ */
+public class Deflate_Codec implements Payload_Codec {
+
+    /**
+     * @param dictionary text typical of the payloads, or null for none; only
+     * the last 32 KB are used by Deflate
+     * @param level compression level, from Deflater.BEST_SPEED to
+     * Deflater.BEST_COMPRESSION
+     */
+    public Deflate_Codec(String dictionary, int level) {
+        this.dictionary = dictionary == null ? null : dictionary.getBytes(StandardCharsets.UTF_8);
+        deflater = new Deflater(level, true);
+        inflater = new Inflater(true);
+        in = new byte[256];
+        out = new byte[256];
+    }
+
+    /**
+     * Codec with the fastest compression level
+     *
+     * @param dictionary text typical of the payloads, or null for none
+     */
+    public Deflate_Codec(String dictionary) {
+        this(dictionary, Deflater.BEST_SPEED);
+    }
+
+    @Override
+    public String encode(String payload) {
+        int n = to_bytes(payload);
+        deflater.reset();
+        if (dictionary != null) {
+            deflater.setDictionary(dictionary);
+        }
+        deflater.setInput(in, 0, n);
+        deflater.finish();
+        int len = 0;
+        while (!deflater.finished()) {
+            if (len == out.length) {
+                out = Arrays.copyOf(out, 2 * out.length);
+            }
+            len += deflater.deflate(out, len, out.length - len);
+        }
+        if (len >= payload.length()) {
+            return RAW + payload;   // nao compensa
+        }
+        char[] c = new char[len + 1];
+        c[0] = DEFLATED;
+        for (int i = 0; i < len; i++) {
+            c[i + 1] = (char) (out[i] & 0xff);
+        }
+        return new String(c);
+    }
+
+    @Override
+    public String decode(String payload) {
+        if (payload.isEmpty()) {
+            throw new IllegalArgumentException("Empty coded payload");
+        }
+        if (payload.charAt(0) == RAW) {
+            return payload.substring(1);
+        }
+        if (payload.charAt(0) != DEFLATED) {
+            throw new IllegalArgumentException("Unknown payload coding '" + payload.charAt(0) + "'");
+        }
+        int n = payload.length() - 1;
+        if (in.length < n) {
+            in = new byte[Math.max(n, 2 * in.length)];
+        }
+        for (int i = 0; i < n; i++) {
+            in[i] = (byte) payload.charAt(i + 1);
+        }
+        inflater.reset();
+        if (dictionary != null) {
+            inflater.setDictionary(dictionary);
+        }
+        inflater.setInput(in, 0, n);
+        int len = 0;
+        try {
+            while (!inflater.finished()) {
+                if (len == out.length) {
+                    out = Arrays.copyOf(out, 2 * out.length);
+                }
+                int r = inflater.inflate(out, len, out.length - len);
+                if (r == 0 && inflater.needsInput()) {
+                    throw new IllegalArgumentException("Truncated compressed payload");
+                }
+                len += r;
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Invalid compressed payload", e);
+        }
+        return new String(out, 0, len, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Copies the payload to the input buffer as UTF-8
+     *
+     * @return number of bytes
+     */
+    private int to_bytes(String payload) {
+        int n = payload.length();
+        if (in.length < 3 * n) {
+            in = new byte[Math.max(3 * n, 2 * in.length)];
+        }
+        for (int i = 0; i < n; i++) {
+            char c = payload.charAt(i);
+            if (c >= 0x80) {
+                byte[] b = payload.getBytes(StandardCharsets.UTF_8);     // caso raro: nao ASCII
+                System.arraycopy(b, 0, in, 0, b.length);
+                return b.length;
+            }
+            in[i] = (byte) c;
+        }
+        return n;
+    }
+
+    /* Variables */
+    /**
+     * First char of the coded payload
+     */
+    private static final char RAW = 'R', DEFLATED = 'Z';
+    /**
+     * Preset dictionary (UTF-8), or null
+     */
+    private final byte[] dictionary;
+    private final Deflater deflater;
+    private final Inflater inflater;
+    /**
+     * Reusable buffers: input and output of the Deflater/Inflater
+     */
+    private byte[] in, out;
+}
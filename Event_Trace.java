@@ -0,0 +1,309 @@
+/*
+ * Sistemas de Telecomunicacoes
+ *          2022/2023
+ */
+package protocol;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import terminal.Simulator;
+
+/**
+ * Binary event trace: a preallocated ring buffer of primitive records (time,
+ * event kind, seq, ack) filled by the protocols instead of building log
+ * strings on every event.
+ *
+ * When an output is set, the records are written in a compact binary format
+ * each time the ring fills up and on flush(); without an output the oldest
+ * records are overwritten and only the last capacity events are kept. The
+ * file is read back by Trace_Decoder, which prints it as text or CSV.
+ *
+ * File format (big endian): MAGIC (int), VERSION (short), then one record of
+ * RECORD_BYTES per event: time (long), kind (byte), seq (int), ack (int). A
+ * DROPPED record tells how many events were lost (in seq) before it.
+ *
+ * Not thread safe: a trace is filled by the callbacks of one simulator.
+ */
+public class Event_Trace {
+
+    /**
+     * Event kinds
+     */
+    public static final int DROPPED = 0;
+    public static final int DATA_END_UNEXPECTED = 1;
+    public static final int DATA_TIMEOUT_UNEXPECTED = 2;
+    public static final int ACK_TIMEOUT_UNEXPECTED = 3;
+    public static final int FRAME_UNEXPECTED = 4;
+    public static final int SEND_FAILED = 5;
+    public static final int RESEND_FAILED = 6;
+    public static final int ACK_SEND_FAILED = 7;
+    public static final int DATA_TIMEOUT = 8;
+    public static final int ACK_RECEIVED = 9;
+    public static final int NAK_RECEIVED = 10;
+    public static final int NAK_SENT = 11;
+    public static final int SEND_DEFERRED = 12;
+
+    private static final String[] NAMES = {"DROPPED", "DATA_END_UNEXPECTED", "DATA_TIMEOUT_UNEXPECTED",
+        "ACK_TIMEOUT_UNEXPECTED", "FRAME_UNEXPECTED", "SEND_FAILED", "RESEND_FAILED", "ACK_SEND_FAILED",
+        "DATA_TIMEOUT", "ACK_RECEIVED", "NAK_RECEIVED", "NAK_SENT", "SEND_DEFERRED"};
+
+    /**
+     * File header and record size
+     */
+    public static final int MAGIC = 0x45545243;    // "ETRC"
+    public static final short VERSION = 1;
+    public static final int RECORD_BYTES = 8 + 1 + 4 + 4;
+
+    /**
+     * @param capacity number of records kept in memory, rounded up to a power
+     * of two
+     */
+    public Event_Trace(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Invalid trace capacity " + capacity);
+        }
+        int n = Integer.highestOneBit(capacity);
+        if (n < capacity) {
+            n <<= 1;
+        }
+        mask = n - 1;
+        times = new long[n];
+        kinds = new byte[n];
+        seqs = new int[n];
+        acks = new int[n];
+        head = 0;
+        tail = 0;
+        dropped = 0;
+        out = null;
+        header_written = false;
+        error = null;
+    }
+
+    /**
+     * Records an event in a trace, or writes it to the simulator log when no
+     * trace is used
+     *
+     * @param trace trace of the protocol, may be null
+     * @param sim simulator that receives the log when trace is null
+     * @param time current simulation time
+     * @param kind event kind
+     * @param seq sequence number of the event, or -1
+     * @param ack acknowledge number of the event, or -1
+     */
+    public static void log(Event_Trace trace, Simulator sim, long time, int kind, int seq, int ack) {
+        if (trace != null) {
+            trace.add(time, kind, seq, ack);
+        } else {
+            sim.Log(format(time, kind, seq, ack) + "\n");
+        }
+    }
+
+    /**
+     * Records an event in a trace; does nothing when no trace is used, so it
+     * can be called on every event
+     *
+     * @param trace trace of the protocol, may be null
+     * @param time current simulation time
+     * @param kind event kind
+     * @param seq sequence number of the event, or -1
+     * @param ack acknowledge number of the event, or -1
+     */
+    public static void record(Event_Trace trace, long time, int kind, int seq, int ack) {
+        if (trace != null) {
+            trace.add(time, kind, seq, ack);
+        }
+    }
+
+    /**
+     * Adds an event to the ring buffer, without allocating
+     *
+     * @param time current simulation time
+     * @param kind event kind
+     * @param seq sequence number of the event, or -1
+     * @param ack acknowledge number of the event, or -1
+     */
+    public void add(long time, int kind, int seq, int ack) {
+        if (tail - head > mask) {
+            if (out != null && error == null) {
+                flush();
+            } else {
+                head++;     // perde o mais antigo
+                dropped++;
+            }
+        }
+        int i = (int) tail & mask;
+        times[i] = time;
+        kinds[i] = (byte) kind;
+        seqs[i] = seq;
+        acks[i] = ack;
+        tail++;
+    }
+
+    /**
+     * Sets the output where the records are written when the ring fills up
+     * and on flush()
+     *
+     * @param out output stream, or null to keep only the last records
+     */
+    public void set_output(OutputStream out) {
+        this.out = out == null ? null : new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+        header_written = false;
+    }
+
+    /**
+     * Sets a file as output of the trace
+     *
+     * @param file_name name of the trace file, overwritten
+     * @throws IOException if the file cannot be created
+     */
+    public void set_output(String file_name) throws IOException {
+        set_output(new FileOutputStream(file_name));
+    }
+
+    /**
+     * Writes the records kept in memory to the output and empties the ring.
+     * A write error is kept (see error()) and the trace stops writing; the
+     * simulation is not interrupted.
+     */
+    public void flush() {
+        if (out == null || error != null) {
+            return;
+        }
+        try {
+            if (!header_written) {
+                out.writeInt(MAGIC);
+                out.writeShort(VERSION);
+                header_written = true;
+            }
+            if (dropped > 0) {
+                write_record(head < tail ? times[(int) head & mask] : 0, DROPPED, (int) Math.min(dropped, Integer.MAX_VALUE), -1);
+                dropped = 0;
+            }
+            for (; head < tail; head++) {
+                int i = (int) head & mask;
+                write_record(times[i], kinds[i], seqs[i], acks[i]);
+            }
+            out.flush();
+        } catch (IOException e) {
+            error = e;
+        }
+    }
+
+    /**
+     * Flushes and closes the output
+     */
+    public void close() {
+        flush();
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                if (error == null) {
+                    error = e;
+                }
+            }
+            out = null;
+        }
+    }
+
+    private void write_record(long time, int kind, int seq, int ack) throws IOException {
+        out.writeLong(time);
+        out.writeByte(kind);
+        out.writeInt(seq);
+        out.writeInt(ack);
+    }
+
+    /**
+     * @return number of records kept in memory
+     */
+    public int size() {
+        return (int) (tail - head);
+    }
+
+    /**
+     * @return number of records overwritten since the last flush
+     */
+    public long dropped() {
+        return dropped;
+    }
+
+    /**
+     * @return the write error that stopped the output, or null
+     */
+    public IOException error() {
+        return error;
+    }
+
+    /**
+     * Returns the record i of the ring, 0 being the oldest kept
+     *
+     * @param i record index, from 0 to size() - 1
+     * @return the record as a line of text
+     */
+    public String get(int i) {
+        if (i < 0 || i >= size()) {
+            throw new IndexOutOfBoundsException("Record " + i + " of " + size());
+        }
+        int j = (int) (head + i) & mask;
+        return format(times[j], kinds[j], seqs[j], acks[j]);
+    }
+
+    /**
+     * @param kind event kind
+     * @return name of the event kind
+     */
+    public static String name(int kind) {
+        return kind >= 0 && kind < NAMES.length ? NAMES[kind] : "KIND_" + kind;
+    }
+
+    /**
+     * Formats a record as a line of the simulator log
+     *
+     * @param time simulation time
+     * @param kind event kind
+     * @param seq sequence number, or -1
+     * @param ack acknowledge number, or -1
+     * @return text of the record, without the line end
+     */
+    public static String format(long time, int kind, int seq, int ack) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(time).append(' ').append(name(kind));
+        if (seq >= 0) {
+            sb.append(kind == DROPPED ? " count=" : " seq=").append(seq);
+        }
+        if (ack >= 0) {
+            sb.append(" ack=").append(ack);
+        }
+        return sb.toString();
+    }
+
+    /* Variables */
+    /**
+     * Ring buffer of records, one array per field; mask = capacity - 1
+     */
+    private final int mask;
+    private final long[] times;
+    private final byte[] kinds;
+    private final int[] seqs;
+    private final int[] acks;
+    /**
+     * Total records removed from and added to the ring
+     */
+    private long head, tail;
+    /**
+     * Records overwritten since the last flush
+     */
+    private long dropped;
+    /**
+     * Output of the trace, null to keep the records only in memory
+     */
+    private DataOutputStream out;
+    private boolean header_written;
+    /**
+     * Write error that stopped the output
+     */
+    private IOException error;
+}
@@ -0,0 +1,480 @@
+/*
+ * Sistemas de Telecomunicacoes
+ *          2022/2023
+ */
+package protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Base64;
+import simulator.Frame;
+import terminal.Simulator;
+
+/**
+ * Forward error correction below the ARQ protocols: the data frames are sent
+ * in groups of up to K frames followed by a parity frame with their XOR, so
+ * the receiver can rebuild one frame lost in the group without waiting for a
+ * retransmission.
+ *
+ * The layer is placed around the protocol (see protect()), like
+ * Protocol_Metrics, and both ends must use it. Each data frame carries its
+ * group and index in front of the payload ("D<group>.<index>|"); the parity
+ * frame is a data frame with the payload "P<group>.<frames>|" followed by the
+ * XOR of the encoded frames (seq, ack, rcvbufsize and payload) in Base64.
+ *
+ * The parity is sent when the group is complete or when the transmitter
+ * becomes idle with at least min_group frames in the group; a smaller group
+ * waits for the next frames, so a protocol that sends one frame per round
+ * trip (StopWait) does not follow every data frame with a parity frame as
+ * long as the frame. A frame sent by the protocol while the parity is being
+ * transmitted is queued and sent after it; the protocol never finds the
+ * transmitter busy because of the parity. The receiver delivers the frames of a group in the order they were
+ * sent: after a gap it holds the following frames until the parity arrives,
+ * so a rebuilt frame is never delivered after newer frames (the ARQ protocols
+ * assume the channel keeps the frame order).
+ *
+ * One XOR parity repairs one loss per group; Reed-Solomon codes, that repair
+ * several, are not implemented.
+ */
+public class Fec_Layer {
+
+    /**
+     * @param k maximum number of data frames per parity frame
+     * @param min_group minimum number of data frames of a group sent when the
+     * transmitter becomes idle, from 1 to k
+     */
+    public Fec_Layer(int k, int min_group) {
+        if (k < 1 || min_group < 1 || min_group > k) {
+            throw new IllegalArgumentException("Invalid FEC group size " + k + " minimum " + min_group);
+        }
+        this.k = k;
+        this.min_group = min_group;
+        data_frames = 0;
+        parity_frames = 0;
+        data_bytes = 0;
+        parity_bytes = 0;
+        recovered = 0;
+        unrecovered = 0;
+    }
+
+    /**
+     * A group of a single frame is not sent when the transmitter becomes idle
+     *
+     * @param k maximum number of data frames per parity frame
+     */
+    public Fec_Layer(int k) {
+        this(k, Math.min(k, 2));
+    }
+
+    /**
+     * Returns a factory that builds the protocol of f with this FEC layer
+     * around it
+     *
+     * @param f factory of the protocol to protect
+     * @return factory of the protected protocol
+     */
+    public Protocol_Factory protect(Protocol_Factory f) {
+        return (sim, net) -> {
+            Encoder enc = new Encoder(sim);
+            return new Decoder(f.create(enc, net), enc);
+        };
+    }
+
+    /**
+     * @return data frames sent
+     */
+    public long data_frames() {
+        return data_frames;
+    }
+
+    /**
+     * @return parity frames sent
+     */
+    public long parity_frames() {
+        return parity_frames;
+    }
+
+    /**
+     * @return parity bytes sent per data byte sent
+     */
+    public double overhead() {
+        return data_bytes > 0 ? (double) parity_bytes / data_bytes : 0;
+    }
+
+    /**
+     * @return data frames rebuilt from the parity
+     */
+    public long recovered() {
+        return recovered;
+    }
+
+    /**
+     * @return fraction of the frames rebuilt, among the frames missing in the
+     * groups whose parity arrived
+     */
+    public double recovery_rate() {
+        return recovered + unrecovered > 0 ? (double) recovered / (recovered + unrecovered) : 0;
+    }
+
+    /**
+     * @return text with the overhead and the recovery counters
+     */
+    @Override
+    public String toString() {
+        return String.format("FEC K=%d (min %d): %d parity frames for %d data frames (%.1f%% of the bytes), "
+                + "%d of %d missing frames recovered (%.1f%%)",
+                k, min_group, parity_frames, data_frames, 100 * overhead(),
+                recovered, recovered + unrecovered, 100 * recovery_rate());
+    }
+
+    /**
+     * Encodes the fields of a data frame to be XORed: seq, ack, rcvbufsize,
+     * payload length and payload (UTF-8)
+     */
+    private static byte[] encode(int seq, int ack, int rcvbuf, String info) {
+        byte[] b = info.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(16 + b.length).putInt(seq).putInt(ack).putInt(rcvbuf)
+                .putInt(b.length).put(b).array();
+    }
+
+    /**
+     * dst ^= src, growing dst if src is longer
+     *
+     * @return dst, or a longer copy of it
+     */
+    private static byte[] xor(byte[] dst, byte[] src) {
+        if (dst.length < src.length) {
+            dst = Arrays.copyOf(dst, src.length);
+        }
+        for (int i = 0; i < src.length; i++) {
+            dst[i] ^= src[i];
+        }
+        return dst;
+    }
+
+    /**
+     * Layer between the protocol and the simulator: marks the data frames,
+     * computes the parity of each group and sends it
+     */
+    private class Encoder extends Simulator_Filter {
+
+        Encoder(Simulator sim) {
+            super(sim);
+            group = 0;
+            index = 0;
+            parity = new byte[0];
+            last_seq = 0;
+            parity_on_wire = false;
+            queued = null;
+            sent = new ArrayDeque<>();
+        }
+
+        @Override
+        public boolean is_sending_data() {
+            return parity_on_wire ? queued != null : sim.is_sending_data();
+        }
+
+        @Override
+        public boolean to_physical_layer(Frame frame, boolean interrupt) {
+            if (parity_on_wire && queued != null) {
+                return false;
+            }
+            if (frame.kind() != Frame.DATA_FRAME) {
+                if (index > 0 && !parity_on_wire) {
+                    send_parity();  // o ACK/NAK nao fica no meio de um grupo
+                }
+                if (parity_on_wire) {
+                    queued = frame;
+                    return true;
+                }
+                return transmit(frame, interrupt, false);
+            }
+            if (index == k && !parity_on_wire) {
+                send_parity();  // grupo completo - a paridade vai primeiro
+            }
+            String info = "D" + group + "." + index + "|" + frame.info();
+            Frame f = Frame.new_Data_Frame(frame.seq(), frame.ack(), frame.rcvbufsize(), info);
+            if (parity_on_wire) {
+                queued = f;
+            } else if (!transmit(f, interrupt, false)) {
+                return false;
+            }
+            parity = xor(parity, encode(frame.seq(), frame.ack(), frame.rcvbufsize(), frame.info()));
+            last_seq = frame.seq();
+            index++;
+            data_frames++;
+            data_bytes += info.length();
+            return true;
+        }
+
+        /**
+         * Sends the parity frame of the current group and starts a new group;
+         * waits for the next DATA_END if the transmitter is busy
+         */
+        void send_parity() {
+            if (sim.is_sending_data()) {
+                return;
+            }
+            String info = "P" + group + "." + index + "|" + Base64.getEncoder().encodeToString(parity);
+            group++;
+            index = 0;
+            parity = new byte[0];
+            if (transmit(Frame.new_Data_Frame(last_seq, 0, 0, info), false, true)) {
+                parity_on_wire = true;
+                parity_frames++;
+                parity_bytes += info.length();
+            }
+        }
+
+        /**
+         * Sends a frame to the simulator, keeping the order of the data
+         * transmissions to match their DATA_END events
+         */
+        private boolean transmit(Frame f, boolean interrupt, boolean is_parity) {
+            if (!sim.to_physical_layer(f, interrupt)) {
+                return false;
+            }
+            if (f.kind() == Frame.DATA_FRAME) {
+                sent.add(is_parity);
+            }
+            return true;
+        }
+
+        /**
+         * Called on DATA_END: the DATA_END of a frame sent at the same instant
+         * may still be pending when the next frame starts
+         *
+         * @return true if the transmission that ended was the parity frame
+         */
+        boolean parity_ended() {
+            Boolean p = sent.poll();
+            return p != null && p;
+        }
+
+        /**
+         * Ends the transmission of the parity frame and sends the frame queued
+         * by the protocol
+         */
+        void parity_end() {
+            parity_on_wire = false;
+            if (queued != null) {
+                Frame f = queued;
+                queued = null;
+                transmit(f, false, false);
+            }
+        }
+
+        /**
+         * Group being sent, index of the next frame in it, XOR of the frames
+         * already sent in it and sequence number of the last one
+         */
+        long group;
+        int index;
+        byte[] parity;
+        int last_seq;
+        /**
+         * The parity frame is being transmitted
+         */
+        boolean parity_on_wire;
+        /**
+         * Frame sent by the protocol during the parity, sent after it
+         */
+        Frame queued;
+        /**
+         * Data transmissions waiting for their DATA_END, true for the parity
+         */
+        final ArrayDeque<Boolean> sent;
+    }
+
+    /**
+     * Layer between the simulator and the protocol: removes the FEC header,
+     * rebuilds the missing frames and delivers each group in order
+     */
+    private class Decoder extends Callbacks_Filter {
+
+        Decoder(Callbacks protocol, Encoder enc) {
+            super(protocol);
+            this.enc = enc;
+            group = 0;
+            frames = new byte[k][];
+            held = new Frame[k];
+            received = 0;
+            next = 0;
+        }
+
+        @Override
+        public void handle_Data_end(long time, int seq) {
+            if (enc.parity_ended()) {
+                enc.parity_end();   // DATA_END da paridade
+                return;
+            }
+            if (enc.index == k) {
+                enc.send_parity();
+            }
+            protocol.handle_Data_end(time, seq);
+            if (enc.index >= min_group && !enc.parity_on_wire) {
+                enc.send_parity();  // emissor parado - nao espera pelo resto do grupo
+            }
+        }
+
+        @Override
+        public void from_physical_layer(long time, Frame frame) {
+            String info = frame.info();
+            int bar = frame.kind() == Frame.DATA_FRAME && info != null ? info.indexOf('|') : -1;
+            int dot = bar > 0 ? info.lastIndexOf('.', bar) : -1;
+            if (dot < 2 || (info.charAt(0) != 'D' && info.charAt(0) != 'P')) {
+                if (received > 0) {
+                    release(time);  // a paridade perdeu-se; mantem a ordem das tramas
+                    group++;
+                }
+                protocol.from_physical_layer(time, frame);  // ACK, NAK ou sem FEC no emissor
+                return;
+            }
+            long g = Long.parseLong(info.substring(1, dot));
+            int i = Integer.parseInt(info.substring(dot + 1, bar));
+            if (g < group) {
+                return;     // grupo ja terminado
+            }
+            if (g > group) {
+                release(time);  // a paridade perdeu-se
+                group = g;
+            }
+            if (info.charAt(0) == 'P') {
+                rebuild(i, Base64.getDecoder().decode(info.substring(bar + 1)));
+                release(time);
+                group++;
+                return;
+            }
+            if (i >= k || frames[i] != null) {
+                return;
+            }
+            String payload = info.substring(bar + 1);
+            frames[i] = encode(frame.seq(), frame.ack(), frame.rcvbufsize(), payload);
+            received++;
+            Frame f = Frame.new_Data_Frame(frame.seq(), frame.ack(), frame.rcvbufsize(), payload);
+            if (i == next) {
+                next++;
+                protocol.from_physical_layer(time, f);
+            } else {
+                held[i] = f;    // espera pela paridade para entregar por ordem
+            }
+        }
+
+        /**
+         * Rebuilds the missing frame of the group when all the other frames
+         * were received
+         *
+         * @param n number of frames of the group
+         * @param x parity of the group
+         */
+        private void rebuild(int n, byte[] x) {
+            if (n > k || received >= n) {
+                return;
+            }
+            if (received < n - 1) {
+                unrecovered += n - received;
+                return;
+            }
+            int missing = 0;
+            for (int i = 0; i < n; i++) {
+                if (frames[i] != null) {
+                    x = xor(x, frames[i]);
+                } else {
+                    missing = i;
+                }
+            }
+            ByteBuffer b = ByteBuffer.wrap(x);
+            int seq = b.getInt();
+            int ack = b.getInt();
+            int rcvbuf = b.getInt();
+            int len = b.getInt();
+            if (len < 0 || len > b.remaining()) {
+                unrecovered++;  // paridade inconsistente
+                return;
+            }
+            held[missing] = Frame.new_Data_Frame(seq, ack, rcvbuf, new String(x, 16, len, StandardCharsets.UTF_8));
+            recovered++;
+        }
+
+        /**
+         * Delivers the frames held in the current group, in order, and clears
+         * the group
+         */
+        private void release(long time) {
+            for (int i = next; i < k; i++) {
+                if (held[i] != null) {
+                    Frame f = held[i];
+                    held[i] = null;
+                    protocol.from_physical_layer(time, f);
+                }
+            }
+            Arrays.fill(frames, null);
+            received = 0;
+            next = 0;
+        }
+
+        @Override
+        public void end_simulation(long time) {
+            protocol.end_simulation(time);
+            enc.Log(Fec_Layer.this.toString() + "\n");
+        }
+
+        final Encoder enc;
+        /**
+         * Group being received, encoded frames received in it, frames held
+         * after a gap, and index of the next frame to deliver
+         */
+        long group;
+        final byte[][] frames;
+        final Frame[] held;
+        int received;
+        int next;
+    }
+
+    /**
+     * Runs each protocol in the local simulator with and without FEC and
+     * prints the transfer time, the data frames retransmitted, the overhead
+     * and the recovery rate
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: java protocol.Fec_Layer protocol[,protocol...] K [packets] [loss] [min_group]");
+            return;
+        }
+        Local_Simulator.Config config = new Local_Simulator.Config();
+        config.packets_a = args.length > 2 ? Integer.parseInt(args[2]) : config.packets_a;
+        config.loss = args.length > 3 ? Double.parseDouble(args[3]) : config.loss;
+        int k = Integer.parseInt(args[1]);
+        int min_group = args.length > 4 ? Integer.parseInt(args[4]) : Math.min(k, 2);
+        System.out.printf("K=%d, min group %d, loss %.2f, %d packets%n", k, min_group, config.loss, config.packets_a);
+        System.out.println("protocol          ms_plain   ms_fec  retx_plain  retx_fec  parity/data  overhead  recovered");
+        for (String name : args[0].split(",")) {
+            Protocol_Factory f = Local_Simulator.factory(name);
+            Fec_Layer fec = new Fec_Layer(k, min_group);
+            Local_Simulator plain = new Local_Simulator(config, f, f);
+            long t_plain = plain.run();
+            Local_Simulator coded = new Local_Simulator(config, fec.protect(f), fec.protect(f));
+            long t_fec = coded.run();
+            System.out.printf("%-16s %9d %8d %11d %9d %7d/%-5d %7.1f%% %6d/%d%s%n", name, t_plain, t_fec,
+                    plain.side_a().data_frames_sent - plain.side_b().delivered,
+                    fec.data_frames() - coded.side_b().delivered,
+                    fec.parity_frames(), fec.data_frames(), 100 * fec.overhead(),
+                    fec.recovered, fec.recovered + fec.unrecovered,
+                    coded.side_b().delivered == config.packets_a ? "" : "  (" + coded.side_b().delivered + " delivered)");
+        }
+    }
+
+    /* Variables */
+    /**
+     * Maximum number of data frames per parity frame, and minimum sent when
+     * the transmitter becomes idle
+     */
+    private final int k;
+    private final int min_group;
+    /**
+     * Overhead and recovery counters
+     */
+    private long data_frames, parity_frames, data_bytes, parity_bytes, recovered, unrecovered;
+}
@@ -0,0 +1,308 @@
+/*
+ * Sistemas de Telecomunicacoes
+ *          2022/2023
+ */
+package protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32C;
+import simulator.Frame;
+
+/**
+ * Compact binary encoding of the frames for a real transport (see
+ * Udp_Terminal).
+ *
+ * Layout (big endian), HEADER_BYTES + payload + CRC_BYTES:
+ * <pre>
+ *  0: kind (2 bits) | rcvbufsize (14 bits)
+ *  2: seq (16 bits; the NAK number in NAK frames, 0 in ACK frames)
+ *  4: ack (16 bits; 0 in NAK frames)
+ *  6: payload length (16 bits)
+ *  8: payload (bytes, DATA frames only)
+ *  8 + length: CRC-32C of the header and the payload
+ * </pre>
+ * The fields used by the kind (DATA: seq and ack; ACK: ack; NAK: the NAK
+ * number) must be in 0..65535; the others, -1 in the Frame, are written as 0.
+ * rcvbufsize is limited to MAX_RCVBUF.
+ *
+ * The frames are written into and read from the caller's buffer (e.g. the
+ * direct buffer of a datagram channel), without intermediate objects: read()
+ * checks a frame and keeps its fields, which are then read with kind(),
+ * seq(), ... and copy_payload(). decode() builds a Frame, which allocates
+ * the Frame and its String. Not thread safe: the codec keeps the last frame
+ * read and reuses its CRC and payload buffer.
+ */
+public class Frame_Codec {
+
+    /**
+     * Bytes of the header and of the CRC, and largest values of the fields
+     */
+    public static final int HEADER_BYTES = 8;
+    public static final int CRC_BYTES = 4;
+    public static final int MAX_SEQUENCE = 0xffff;
+    public static final int MAX_RCVBUF = 0x3fff;
+    public static final int MAX_PAYLOAD = 0xffff;
+
+    public Frame_Codec() {
+        crc = new CRC32C();
+        bytes = new byte[256];
+    }
+
+    /**
+     * @param payload_bytes payload length
+     * @return bytes of an encoded frame
+     */
+    public static int frame_bytes(int payload_bytes) {
+        return HEADER_BYTES + payload_bytes + CRC_BYTES;
+    }
+
+    /**
+     * Writes a frame at the position of the buffer; a String payload is
+     * written as UTF-8, copying ASCII text char by char
+     *
+     * @param frame frame to encode
+     * @param dst buffer, with room for the frame
+     * @throws IllegalArgumentException if a field is out of range
+     * @throws java.nio.BufferOverflowException if the frame does not fit
+     */
+    public void encode(Frame frame, ByteBuffer dst) {
+        int kind = frame.kind();
+        int start = dst.position();
+        put_header(dst, kind, kind == Frame.NAK_FRAME ? frame.nak() : frame.seq(), frame.ack(), frame.rcvbufsize());
+        if (kind == Frame.DATA_FRAME && frame.info() != null) {
+            String info = frame.info();
+            int n = info.length();
+            for (int i = 0; i < n; i++) {
+                char c = info.charAt(i);
+                if (c >= 0x80) {
+                    // caso raro: texto nao ASCII
+                    dst.position(start + HEADER_BYTES);
+                    dst.put(info.getBytes(StandardCharsets.UTF_8));
+                    break;
+                }
+                dst.put((byte) c);
+            }
+        }
+        end_frame(dst, start);
+    }
+
+    /**
+     * Writes a frame with a byte payload at the position of the buffer
+     *
+     * @param dst buffer, with room for the frame
+     * @param kind Frame.DATA_FRAME, ACK_FRAME or NAK_FRAME
+     * @param seq sequence number, or NAK number; ignored in ACK frames
+     * @param ack acknowledge number; ignored in NAK frames
+     * @param rcvbufsize receive buffer advertised
+     * @param payload payload, or null
+     * @param off offset of the payload
+     * @param len payload length
+     */
+    public void encode(ByteBuffer dst, int kind, int seq, int ack, int rcvbufsize,
+            byte[] payload, int off, int len) {
+        int start = dst.position();
+        put_header(dst, kind, seq, ack, rcvbufsize);
+        if (payload != null) {
+            dst.put(payload, off, len);
+        }
+        end_frame(dst, start);
+    }
+
+    private static void put_header(ByteBuffer dst, int kind, int seq, int ack, int rcvbufsize) {
+        if (kind < Frame.DATA_FRAME || kind > Frame.NAK_FRAME) {
+            throw new IllegalArgumentException("Invalid frame kind " + kind);
+        }
+        // so os campos usados pelo tipo de trama; os outros vao a 0
+        if (kind == Frame.ACK_FRAME) {
+            seq = 0;
+        } else if (kind == Frame.NAK_FRAME) {
+            ack = 0;
+        }
+        if (seq < 0 || seq > MAX_SEQUENCE || ack < 0 || ack > MAX_SEQUENCE) {
+            throw new IllegalArgumentException("Sequence number out of range: seq " + seq + ", ack " + ack);
+        }
+        int rcv = Math.max(0, Math.min(rcvbufsize, MAX_RCVBUF));
+        dst.putShort((short) (kind << 14 | rcv));
+        dst.putShort((short) seq);
+        dst.putShort((short) ack);
+        dst.putShort((short) 0);    // comprimento, escrito no fim
+    }
+
+    /**
+     * Writes the payload length and the CRC of the frame started at start
+     */
+    private void end_frame(ByteBuffer dst, int start) {
+        int len = dst.position() - start - HEADER_BYTES;
+        if (len > MAX_PAYLOAD) {
+            throw new IllegalArgumentException("Payload too long: " + len + " bytes");
+        }
+        dst.putShort(start + 6, (short) len);
+        dst.putInt((int) checksum(dst, start, dst.position()));
+    }
+
+    /**
+     * CRC of the bytes from start to end of the buffer, read in place
+     */
+    private long checksum(ByteBuffer b, int start, int end) {
+        int pos = b.position(), lim = b.limit();
+        b.limit(end).position(start);
+        crc.reset();
+        crc.update(b);
+        b.limit(lim).position(pos);
+        return crc.getValue();
+    }
+
+    /**
+     * Reads a frame from the position of the buffer and keeps its fields;
+     * the position moves to the end of the frame if it is valid
+     *
+     * @param src buffer
+     * @return true if the buffer holds a complete frame with a valid CRC
+     */
+    public boolean read(ByteBuffer src) {
+        int start = src.position();
+        if (src.remaining() < HEADER_BYTES + CRC_BYTES) {
+            return false;
+        }
+        int h = src.getShort(start) & 0xffff;
+        int len = src.getShort(start + 6) & 0xffff;
+        int end = start + HEADER_BYTES + len;
+        int k = h >>> 14;
+        if (k < Frame.DATA_FRAME || end + CRC_BYTES > src.limit()
+                || (int) checksum(src, start, end) != src.getInt(end)) {
+            return false;   // truncada ou corrompida
+        }
+        kind = k;
+        rcvbufsize = h & MAX_RCVBUF;
+        seq = src.getShort(start + 2) & 0xffff;
+        ack = src.getShort(start + 4) & 0xffff;
+        payload_start = start + HEADER_BYTES;
+        payload_length = len;
+        src.position(end + CRC_BYTES);
+        return true;
+    }
+
+    /**
+     * @return kind of the last frame read
+     */
+    public int kind() {
+        return kind;
+    }
+
+    /**
+     * @return sequence number (NAK number in NAK frames, 0 in ACK frames) of
+     * the last frame read
+     */
+    public int seq() {
+        return seq;
+    }
+
+    /**
+     * @return acknowledge number (0 in NAK frames) of the last frame read
+     */
+    public int ack() {
+        return ack;
+    }
+
+    /**
+     * @return receive buffer advertised in the last frame read
+     */
+    public int rcvbufsize() {
+        return rcvbufsize;
+    }
+
+    /**
+     * @return payload length of the last frame read
+     */
+    public int payload_length() {
+        return payload_length;
+    }
+
+    /**
+     * Copies the payload of the last frame read
+     *
+     * @param src buffer given to read()
+     * @param dst destination array, with room for payload_length() bytes
+     * @param off offset in dst
+     */
+    public void copy_payload(ByteBuffer src, byte[] dst, int off) {
+        src.get(payload_start, dst, off, payload_length);
+    }
+
+    /**
+     * Reads a frame from the position of the buffer
+     *
+     * @param src buffer
+     * @return the frame, or null if the buffer does not hold a valid frame
+     */
+    public Frame decode(ByteBuffer src) {
+        if (!read(src)) {
+            return null;
+        }
+        switch (kind) {
+            case Frame.DATA_FRAME:
+                if (bytes.length < payload_length) {
+                    bytes = new byte[Math.max(payload_length, 2 * bytes.length)];
+                }
+                copy_payload(src, bytes, 0);
+                return Frame.new_Data_Frame(seq, ack, rcvbufsize, new String(bytes, 0, payload_length, StandardCharsets.UTF_8));
+            case Frame.ACK_FRAME:
+                return Frame.new_Ack_Frame(ack, rcvbufsize);
+            default:
+                return Frame.new_Nak_Frame(seq, rcvbufsize);
+        }
+    }
+
+    /**
+     * Round trip check: encodes and decodes DATA, ACK and NAK frames, with
+     * the sequence numbers at the ends of the range, and checks that a
+     * corrupted byte is detected
+     */
+    public static void main(String[] args) {
+        Frame_Codec codec = new Frame_Codec();
+        ByteBuffer b = ByteBuffer.allocate(frame_bytes(64));
+        Frame[] frames = {
+            Frame.new_Data_Frame(0, MAX_SEQUENCE, 5, "packet 1"),
+            Frame.new_Data_Frame(MAX_SEQUENCE, 0, MAX_RCVBUF, "página"),
+            Frame.new_Data_Frame(7, 3, 0, ""),
+            Frame.new_Ack_Frame(0, 1),
+            Frame.new_Ack_Frame(MAX_SEQUENCE, MAX_RCVBUF),
+            Frame.new_Nak_Frame(0, 2),
+            Frame.new_Nak_Frame(MAX_SEQUENCE, 0)
+        };
+        int failures = 0;
+        for (Frame f : frames) {
+            b.clear();
+            codec.encode(f, b);
+            int length = b.position();
+            b.flip();
+            Frame d = codec.decode(b);
+            boolean ok = d != null && d.kind() == f.kind() && d.seq() == f.seq() && d.ack() == f.ack()
+                    && d.nak() == f.nak() && d.rcvbufsize() == f.rcvbufsize()
+                    && (f.kind() != Frame.DATA_FRAME || f.info().equals(d.info()));
+            b.put(length / 2, (byte) (b.get(length / 2) ^ 0x10));   // corrompe um byte
+            b.position(0);
+            boolean detected = codec.decode(b) == null;
+            System.out.printf("%-32s %2d bytes  %s%s%n", f, length, ok ? "ok" : "FAILED -> " + d,
+                    detected ? "" : ", corruption not detected");
+            failures += (ok ? 0 : 1) + (detected ? 0 : 1);
+        }
+        if (failures > 0) {
+            throw new IllegalStateException(failures + " frame codec checks failed");
+        }
+        System.out.println("All frame codec checks passed");
+    }
+
+    /* Variables */
+    private final CRC32C crc;
+    /**
+     * Payload bytes read by decode()
+     */
+    private byte[] bytes;
+    /**
+     * Fields of the last frame read, and position of its payload in the
+     * buffer
+     */
+    private int kind, seq, ack, rcvbufsize, payload_start, payload_length;
+}
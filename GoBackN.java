@@ -4,6 +4,7 @@
  */
 package protocol;
 
+import java.util.BitSet;
 import terminal.Simulator;
 import simulator.Frame;
 import simulator.AckFrameIF;
@@ -24,12 +25,132 @@ public class GoBackN extends Base_Protocol implements Callbacks {
 
         frame_expected = 0;
         next_frame_to_send = 0;
-        sending_buffer = new String[sim.get_max_sequence() + 1];
+        sending_buffer = new Window_Buffer(sim.get_send_window(), sim.get_max_sequence());
         ack_expected = 0;
         nak_sent = false; //variavel de controlo que diz se o nak foi enviado
+        active_timers = new BitSet(sim.get_max_sequence() + 1);
+        single_timer = false;
+        rtt = null;
+        selective_ack = false;
+        receiving_buffer = null;
+        out_of_order = null;
+        highest_sent = 0;
+        packets_acked = 0;
+        frames_retransmitted = 0;
+        ack_policy = new Ack_Policy(Ack_Policy.DELAYED, 1, true);
+        trace = null;
+        batcher = null;
+        flow_control = true;
+        peer_window = sim.get_send_window();    // ate o peer anunciar o seu espaco
+        window_controller = null;
+        send_pending = false;
+        sending_data_frame = false;
 
     }
 
+    /**
+     * Selects the acknowledgement policy of the receiver
+     *
+     * @param policy policy used to acknowledge the data frames received
+     */
+    public void set_ack_policy(Ack_Policy policy) {
+        ack_policy = policy;
+    }
+
+    /**
+     * Sends the events of the protocol to a binary trace instead of the
+     * simulator log
+     *
+     * @param trace event trace, or null to write to the simulator log
+     */
+    public void set_trace(Event_Trace trace) {
+        this.trace = trace;
+    }
+
+    /**
+     * Enables frame batching in both directions: several packets are packed
+     * in each data frame sent, and the data frames received are unpacked; the
+     * peer must also use batching
+     *
+     * @param batcher batcher of this sender, or null to send one packet per
+     * frame
+     */
+    public void set_batching(Packet_Batcher batcher) {
+        this.batcher = batcher;
+    }
+
+    /**
+     * Enables receiver-driven flow control: the sending window is limited to
+     * the receive buffer space advertised by the peer in the rcvbufsize field
+     * of its frames; with no space one frame is kept in flight, so its
+     * retransmissions probe the receiver until it advertises space again
+     *
+     * @param on true to limit the window to the advertised space
+     */
+    public void set_flow_control(boolean on) {
+        flow_control = on;
+    }
+
+    /**
+     * Enables the dynamic sending window: slow start and additive increase on
+     * ACKs, multiplicative decrease on NAKs and timeouts; the window never
+     * exceeds the simulator window
+     *
+     * @param controller window controller, or null for a fixed window
+     */
+    public void set_window_controller(Window_Controller controller) {
+        window_controller = controller;
+    }
+
+    /**
+     * @return sending window in use, after flow and congestion control
+     */
+    public int current_window() {
+        return send_window();
+    }
+
+    /**
+     * Selects the retransmission timer mode; must be called before the
+     * simulation starts
+     *
+     * @param on true to keep one timer anchored at ack_expected, false to
+     * keep one timer per outstanding frame
+     */
+    public void set_single_timer(boolean on) {
+        single_timer = on;
+    }
+
+    /**
+     * Enables the adaptive retransmission timeout: the data timers last the
+     * estimated RTO when the simulator can set their duration
+     * (Timeout_Control); otherwise a data timer that expires while the frame
+     * may still be in flight (see Rtt_Estimator) is restarted instead of
+     * retransmitting
+     *
+     * @param on true to estimate the round trip time from the ACKs received
+     */
+    public void set_adaptive_timeout(boolean on) {
+        rtt = on ? new Rtt_Estimator(sim.get_max_sequence(), sim) : null;
+    }
+
+    /**
+     * Enables selective acknowledgement: the receiver keeps the frames that
+     * arrive out of order inside the window and its cumulative ACK covers
+     * them once the gap is filled, so the sender skips them after going back.
+     * Requires a sending window of at most half the sequence space.
+     *
+     * @param on true to buffer out of order frames
+     */
+    public void set_selective_ack(boolean on) {
+        if (on && 2 * sim.get_send_window() > sim.get_max_sequence() + 1) {
+            sim.Log("Selective ACK needs a window up to half the sequence space - disabled\n");
+            on = false;
+        }
+        selective_ack = on;
+        receiving_buffer = on ? new String[sim.get_max_sequence() + 1] : null;
+        out_of_order = on ? new BitSet(sim.get_max_sequence() + 1) : null;
+    }
+
     /**
      * CALLBACK FUNCTION: handle the beginning of the simulation event
      *
@@ -45,10 +166,14 @@ public class GoBackN extends Base_Protocol implements Callbacks {
 //gets next data packet from network layer and sends it to the physical layer
     public void send_next_data_packet() {
 
-        if (sending_buffer[next_frame_to_send] == null) {
-            if (net.has_more_packets_to_send()) {
-                sending_buffer[next_frame_to_send] = net.from_network_layer();
+        if (!sending_buffer.contains(next_frame_to_send)) {
+            boolean room = sending_buffer.size() < send_window();
+            if (batcher != null && batcher.has_more(net) && room) {
+                sending_buffer.add(batcher.next_frame(net)); // varios pacotes numa trama
+            } else if (batcher == null && net.has_more_packets_to_send() && room) {
+                sending_buffer.add(net.from_network_layer()); // fica com o numero next_frame_to_send
             } else {
+                send_pending = false;
                 return;
             }
         }
@@ -56,8 +181,10 @@ public class GoBackN extends Base_Protocol implements Callbacks {
     }
 
     /* 
-    * Fetches the network layer for the next packet and starts it transmission
-     * @return true is started data frame transmission, false otherwise
+    * Fetches the network layer for the next packet and starts it transmission;
+     * if the transmitter is busy the frame is kept pending and sent as soon as
+     * it is free (DATA_END of the frame on the wire, or the ack timer when it
+     * is an ACK or NAK frame), so a send opportunity is never lost
      */
     private void send_data_packet() { //donne
         // We can only send one Data packet at a time
@@ -65,19 +192,31 @@ public class GoBackN extends Base_Protocol implements Callbacks {
         //   otherwise the first packet is lost in the channel
 
         //verificar se ja estou a enviar data
-        if (!sim.is_sending_data()) { //verificar se estou a fazer piggybacking
+        if (sim.is_sending_data()) {
+            send_pending = true;
+            if (!sending_data_frame) {
+                sim.start_ack_timer(); // um ACK/NAK nao gera DATA_END - o ack timer acorda
+            }
+        } else { //verificar se estou a fazer piggybacking
 
+            send_pending = false;
             sim.cancel_ack_timer();
+            ack_policy.on_ack_sent(); // o ack segue em piggybacking
 
             // The ACK field of the DATA frame is always the sequence number before zero, because no packets will be received
             int ack = prev_seq(frame_expected);  //ack do anterior ao proximo frame esperado = ack atual (redundante mas ajuda a perceber) 
             Frame frame = Frame.new_Data_Frame(next_frame_to_send /*seq*/,
                     ack /* ack= the one before 0 */,
                     net.get_recvbuffsize() /* returns the buffer space available in the network layer */,
-                    sending_buffer[next_frame_to_send]);
+                    sending_buffer.get(next_frame_to_send));
 
-            sim.to_physical_layer(frame, false /* do not interrupt an ongoing transmission*/);
+            sending_data_frame = sim.to_physical_layer(frame, false /* do not interrupt an ongoing transmission*/);
 
+            if (between(ack_expected, next_frame_to_send, highest_sent)) {
+                frames_retransmitted++; // ja tinha sido enviada
+            } else {
+                highest_sent = next_seq(next_frame_to_send);
+            }
             next_frame_to_send = next_seq(next_frame_to_send); //incremento 
 
         }
@@ -95,8 +234,23 @@ public class GoBackN extends Base_Protocol implements Callbacks {
     @Override
     public void handle_Data_end(long time, int seq) { //Donne
 
-        sim.start_data_timer(seq);
-        if (between(ack_expected, next_frame_to_send, add_seq(ack_expected, sim.get_send_window())))//checks if the frame is between the ack and the window 
+        sending_data_frame = false;
+        if (!between(ack_expected, seq, next_frame_to_send)) {
+            // confirmada por um ack que chegou durante a transmissao - sem timer
+        } else if (!single_timer) {
+            if (rtt != null) {
+                rtt.on_sent(seq, time);
+            }
+            start_timer(seq);
+        } else {
+            if (rtt != null) {
+                rtt.on_sent(seq, time);
+            }
+            if (active_timers.isEmpty()) {
+                start_timer(ack_expected); // um so timer para a janela toda
+            }
+        }
+        if (between(ack_expected, next_frame_to_send, add_seq(ack_expected, send_window())))//checks if the frame is between the ack and the window 
         {
             send_next_data_packet(); // se estiver entre o ack e a window envia o proximo pacote
         }
@@ -112,8 +266,25 @@ public class GoBackN extends Base_Protocol implements Callbacks {
     @Override
     public void handle_Data_Timer(long time, int key) { //Donne 
 
-        for (int n = next_seq(key); between(next_seq(key), n, next_frame_to_send); n = next_seq(n)) { // se acontecer um timeout do data_timer temos que cancelar todos os timers
-            sim.cancel_data_timer(n);
+        active_timers.clear(key); // o timer key expirou
+        if (!between(ack_expected, key, next_frame_to_send)) {
+            return; // a trama ja foi confirmada
+        }
+        if (rtt != null) {
+            if (rtt.is_premature(key, time)) {
+                start_timer(key); // ainda nao passou o RTO estimado
+                return;
+            }
+            rtt.on_timeout();
+        }
+        if (window_controller != null) {
+            window_controller.on_timeout();
+        }
+        Event_Trace.record(trace, time, Event_Trace.DATA_TIMEOUT, key, -1);
+        for (int n = active_timers.nextSetBit(0); n >= 0; n = active_timers.nextSetBit(n + 1)) { // se acontecer um timeout do data_timer temos que cancelar os timers seguintes
+            if (between(next_seq(key), n, next_frame_to_send)) {
+                cancel_timer(n);
+            }
         }
         next_frame_to_send = key; //key foi o frame que levou timeout portanto queremos que o proximo a enviar seja "key"
         send_next_data_packet(); //send same packet if timer runs 
@@ -127,11 +298,31 @@ public class GoBackN extends Base_Protocol implements Callbacks {
     @Override
     public void handle_ack_Timer(long time) { //donne
 
+        if (send_pending) {
+            send_next_data_packet(); // se houver dados o ack segue em piggybacking
+            if (send_pending || sending_data_frame) {
+                return;
+            }
+        }
+        if (ack_policy.ack_on_timer()) {
+            send_ack_frame(time);
+        }
+    }
+
+    /**
+     * Sends a standalone ACK frame acknowledging the last frame received in
+     * order
+     *
+     * @param time current simulation time
+     */
+    private void send_ack_frame(long time) {
+
         Frame ack_frame = Frame.new_Ack_Frame(prev_seq(frame_expected), net.get_recvbuffsize());
         if (!sim.is_sending_data()) {
             sim.to_physical_layer(ack_frame, false /* do not interrupt an ongoing transmission*/); //envia um ack sem data se o timer expirar
+            ack_policy.on_ack_sent();
         } else {
-            sim.Log("Could not send a ack\n");
+            Event_Trace.log(trace, sim, time, Event_Trace.ACK_SEND_FAILED, -1, prev_seq(frame_expected));
         }
 
     }
@@ -146,23 +337,31 @@ public class GoBackN extends Base_Protocol implements Callbacks {
     @Override
     public void from_physical_layer(long time, Frame frame) { //donne
 
+        boolean window_grew = update_peer_window(frame.rcvbufsize());
+
         //TRATAMENTO DE FRAMES DE NAK //donne
         if (frame.kind() == Frame.NAK_FRAME) {   // Check if its a NAK frame
+            Event_Trace.record(trace, time, Event_Trace.NAK_RECEIVED, frame.nak(), -1);
+            if (window_controller != null) {
+                window_controller.on_loss();
+            }
 
-            if (!sim.isactive_data_timer(frame.nak())) {  //ATENÇÃO ALTEREI ISTO
+            if (!data_timer_covers(frame.nak())) {  //ATENÇÃO ALTEREI ISTO
             for (int i = ack_expected; between(ack_expected, i, next_frame_to_send); i = next_seq(i)) {//para o loop quando ack_expected = nak recebido (para dar a volta á sequencia por exemplo)
 
                 if (between(ack_expected, i, frame.nak())) {
-                    sending_buffer[i] = null;//descarta os frames antes do nak
+                    packets_acked++;
+                    if (rtt != null) {
+                        rtt.discard(i);
+                    }
                 }
 
             }
-            for (int i = 0; i <= sim.get_max_sequence(); i++) { //TOU A CANCELAR TUDO
-                sim.cancel_data_timer(i);//cancela o data timer da data recebida
-            }
+            cancel_all_timers(); //so os timers que estao ativos
 
             next_frame_to_send = frame.nak();//o próximo frame a enviar é o recebido com o numero de seq do nak
             ack_expected = frame.nak();
+            sending_buffer.release_until(ack_expected);//descarta os frames antes do nak
             send_next_data_packet();
 
              }
@@ -172,18 +371,26 @@ public class GoBackN extends Base_Protocol implements Callbacks {
         if (frame.kind() == Frame.DATA_FRAME) {  // Check if its a data frane
                     //receaving a normal data frame
             nak_sent = false;
+            if (selective_ack && frame.seq() != frame_expected
+                    && between(frame_expected, frame.seq(), add_seq(frame_expected, sim.get_send_window()))) {
+                receiving_buffer[frame.seq()] = frame.info(); // guarda a trama fora de ordem
+                out_of_order.set(frame.seq());
+            }
             if (frame.seq() == frame_expected) //verifica se o data frame é o esperado
             {
-                sim.start_ack_timer();
-                if (net.to_network_layer(frame.info()));
-                {
-                    frame_expected = next_seq(frame_expected);
+                if (to_network_layer(frame.info())) {
+                    frame_expected = next_seq(frame_expected); // so avanca se o nivel de rede aceitou
+                }
+                if (selective_ack) {
+                    deliver_out_of_order();
                 }
+                apply_ack_policy(time, true);
 
                // nak_sent = false;
             } else if (nak_sent == false && between(frame_expected, frame.seq(), add_seq(frame_expected, sim.get_send_window())) && !sim.is_sending_data()) {  //caso contrario envia um nak  && !sim.is_sending_data()
 
                 nak_sent = true;
+                Event_Trace.record(trace, time, Event_Trace.NAK_SENT, frame_expected, -1);
                 sim.cancel_ack_timer();
                 sim.to_physical_layer(
                         Frame.new_Nak_Frame(frame_expected, net.get_recvbuffsize()),
@@ -191,56 +398,209 @@ public class GoBackN extends Base_Protocol implements Callbacks {
 
             } else { 
                 //se for um pacote retransmitido
-                Frame ack_frame = Frame.new_Ack_Frame(prev_seq(frame_expected), net.get_recvbuffsize());
-                sim.to_physical_layer(ack_frame, false /* do not interrupt an ongoing transmission*/); //envia um ack sem data se o timer expirar   
+                apply_ack_policy(time, false);
             }
 
             //receaving a piggybacked ack data frame        AQUI ESTOU A VER O ACK 
-            if (sim.isactive_data_timer(frame.ack())){  //ATENÇÃO ALTEREI ISTO
-
-                if (between(
-                        ack_expected,
-                        frame.ack(),
-                        next_frame_to_send))//verifica se o ack recebido está entre o esperado e a janela
-                {
-                    for (; ack_expected != next_seq(frame.ack()); ack_expected = next_seq(ack_expected))//para o loop quando ack_expected = ack recebido (para dar a volta á sequencia por exemplo)
-                    {
-                        sim.cancel_data_timer(ack_expected);//tramas confirmadas
-                        sending_buffer[ack_expected] = null;
-                    }
-
-                    if (ack_expected == next_frame_to_send) {
-
-                        send_next_data_packet(); //só se envia um pacote se o ack for igual ao esperado
-                    }
-                }
-            }
+            process_ack(time, frame.ack());
 
         }
 
         //TRATAMENTO DE FRAMES DE ACK //donne
         if (frame.kind() == Frame.ACK_FRAME) { //check if its a ack frame
 
-            if (sim.isactive_data_timer(frame.ack())) {
-                //se o ack não for o esperado e estiver dentro da sliding window (pode acontecer se algum ack for perdido)           
-                if (between(ack_expected,
-                        frame.ack(),
-                        next_frame_to_send))//verifica se o ack recebido está entre o esperado e a janela
-                {
-                    for (; ack_expected != next_seq(frame.ack()); ack_expected = next_seq(ack_expected))//para o loop quando ack_expected = ack recebido (para dar a volta á sequencia por exemplo)
-                    {
-                        sim.cancel_data_timer(ack_expected);
-                        sending_buffer[ack_expected] = null;
-                    }
+            process_ack(time, frame.ack());
+        }
 
-                    if (ack_expected == next_frame_to_send) { // quando o ack experado for = ao proximo pacote a enviar
-                        send_next_data_packet(); //só se envia um pacote se o ack for igual ao esperado
-                    }
+        if (window_grew && between(ack_expected, next_frame_to_send, add_seq(ack_expected, send_window()))) {
+            send_next_data_packet(); // o recetor voltou a ter espaco
+        }
+    }
+
+    /**
+     * Acknowledges a data frame received as selected by the ACK policy
+     *
+     * @param time current simulation time
+     * @param in_order true if the frame was the one expected
+     */
+    private void apply_ack_policy(long time, boolean in_order) {
+        switch (ack_policy.on_data_frame(in_order)) {
+            case Ack_Policy.SEND_ACK:
+                if (!sim.is_sending_data()) {
+                    send_ack_frame(time);
+                } else {
+                    sim.start_ack_timer(); // tenta quando o timer expirar
                 }
+                break;
+            case Ack_Policy.START_TIMER:
+                sim.start_ack_timer();
+                break;
+            default:
+                break;  // so em piggybacking
+        }
+    }
+
+    /**
+     * Processes a cumulative ACK, carried in an ACK frame or piggybacked in a
+     * data frame, and slides the sending window
+     *
+     * @param time current simulation time
+     * @param ack sequence number of the last frame acknowledged
+     */
+    private void process_ack(long time, int ack) {
+        // o ack pode ir alem de next_frame_to_send depois de recuar (timeout ou
+        // janela reduzida), ou quando o recetor guardou tramas fora de ordem
+        if (!between(ack_expected, ack, highest_sent)) {
+            return; // ack antigo
+        }
+        if (!between(ack_expected, ack, next_frame_to_send)) {
+            next_frame_to_send = next_seq(ack); // salta as tramas ja entregues
+        }
+        Event_Trace.record(trace, time, Event_Trace.ACK_RECEIVED, -1, ack);
+        int acked = 0;
+        for (; ack_expected != next_seq(ack); ack_expected = next_seq(ack_expected))//para o loop quando ack_expected = ack recebido (para dar a volta á sequencia por exemplo)
+        {
+            cancel_timer(ack_expected);//tramas confirmadas
+            rtt_acked(ack_expected, ack, time);
+            packets_acked++;
+            acked++;
+        }
+        if (window_controller != null) {
+            window_controller.on_ack(acked);
+        }
+        sending_buffer.release_until(ack_expected);
+        rearm_single_timer();
+
+        if (ack_expected == next_frame_to_send // quando o ack experado for = ao proximo pacote a enviar
+                || window_controller != null && between(ack_expected, next_frame_to_send, add_seq(ack_expected, send_window()))) {
+            send_next_data_packet(); // com janela dinamica, envia se a janela cresceu
+        }
+    }
+
+    /**
+     * Delivers to the network layer the buffered frames that follow
+     * frame_expected, in order
+     */
+    private void deliver_out_of_order() {
+        while (out_of_order.get(frame_expected)) {
+            if (!to_network_layer(receiving_buffer[frame_expected])) {
+                return; // nivel de rede cheio, fica guardada
+            }
+            out_of_order.clear(frame_expected);
+            receiving_buffer[frame_expected] = null;
+            frame_expected = next_seq(frame_expected);
+        }
+    }
+
+    /**
+     * @return sending window in use: the configured window, limited by the
+     * space advertised by the peer when flow control is on and by the window
+     * controller
+     */
+    private int send_window() {
+        int w = flow_control ? Math.max(1, Math.min(sim.get_send_window(), peer_window)) : sim.get_send_window();
+        return window_controller != null ? Math.min(w, window_controller.window()) : w;
+    }
+
+    /**
+     * Records the receive buffer space advertised in a frame of the peer
+     *
+     * @param rcvbufsize rcvbufsize field of the frame
+     * @return true if the window grew and more frames may be sent
+     */
+    private boolean update_peer_window(int rcvbufsize) {
+        int before = send_window();
+        peer_window = rcvbufsize;
+        return send_window() > before;
+    }
+
+    /**
+     * Delivers the payload of a data frame to the network layer, unpacking it
+     * when batching is used
+     *
+     * @param info payload of the data frame
+     * @return true if the network layer accepted it
+     */
+    private boolean to_network_layer(String info) {
+        return batcher != null ? batcher.deliver(net, info) : net.to_network_layer(info);
+    }
+
+    /**
+     * Starts the data timer of frame seq and records it as active
+     *
+     * @param seq sequence number of the Data frame
+     */
+    private void start_timer(int seq) {
+        sim.start_data_timer(seq);
+        active_timers.set(seq);
+    }
+
+    /**
+     * Cancels the data timer of frame seq, if it is running
+     *
+     * @param seq sequence number of the Data frame
+     */
+    private void cancel_timer(int seq) {
+        if (active_timers.get(seq)) {
+            sim.cancel_data_timer(seq);
+            active_timers.clear(seq);
+        }
+    }
+
+    /**
+     * Updates the round trip time estimator for a frame confirmed by an ACK;
+     * only the frame named in the ACK gives a sample
+     *
+     * @param seq sequence number of the confirmed frame
+     * @param ack sequence number carried by the ACK
+     * @param time current simulation time
+     */
+    private void rtt_acked(int seq, int ack, long time) {
+        if (rtt != null) {
+            if (seq == ack) {
+                rtt.on_acked(seq, time);
+            } else {
+                rtt.discard(seq);
             }
+        }
+    }
 
+    /**
+     * In single timer mode, moves the timer to the new ack_expected after the
+     * window slides; it is stopped when nothing is outstanding
+     */
+    private void rearm_single_timer() {
+        if (single_timer) {
+            cancel_all_timers();
+            if (ack_expected != next_frame_to_send) {
+                start_timer(ack_expected);
+            }
+        }
+    }
+
+    /**
+     * Checks if frame seq is covered by a running data timer
+     *
+     * @param seq sequence number of the Data frame
+     * @return true if the frame has its own timer running or, in single timer
+     * mode, if it is outstanding while the window timer runs
+     */
+    private boolean data_timer_covers(int seq) {
+        if (single_timer) {
+            return !active_timers.isEmpty() && between(ack_expected, seq, next_frame_to_send);
         }
+        return sim.isactive_data_timer(seq);
+    }
 
+    /**
+     * Cancels every running data timer; only the frames in flight are
+     * visited, not the whole sequence space
+     */
+    private void cancel_all_timers() {
+        for (int i = active_timers.nextSetBit(0); i >= 0; i = active_timers.nextSetBit(i + 1)) {
+            sim.cancel_data_timer(i);
+        }
+        active_timers.clear();
     }
 
     /* CALLBACK FUNCTION: handle the end of the simulation
@@ -251,7 +611,15 @@ public class GoBackN extends Base_Protocol implements Callbacks {
     @Override
     public void end_simulation(long time
     ) {
+        sim.Log("Retransmitted frames: " + frames_retransmitted + " for " + packets_acked + " packets delivered"
+                + (packets_acked > 0 ? String.format(" (%.3f per packet)", (double) frames_retransmitted / packets_acked) : "") + "\n");
+        if (window_controller != null) {
+            sim.Log("Congestion control: " + window_controller + "\n");
+        }
         sim.Log("Stopping simulation\n");
+        if (trace != null) {
+            trace.flush();
+        }
     }
     /* Variables */
     /**
@@ -268,9 +636,10 @@ public class GoBackN extends Base_Protocol implements Callbacks {
      */
     private int next_frame_to_send;
     /**
-     * receaving buffer
+     * Sending buffer, holds the frames from ack_expected to the end of the
+     * window
      */
-    private String[] sending_buffer;
+    private final Window_Buffer sending_buffer;
     /**
      * Expected sequence number of the next data frame received
      */
@@ -286,4 +655,84 @@ public class GoBackN extends Base_Protocol implements Callbacks {
      */
     private boolean nak_sent;
 
+    /**
+     * Data timers currently running, indexed by sequence number
+     */
+    private final BitSet active_timers;
+
+    /**
+     * Retransmission timer mode - one timer for the window (true) or one per
+     * frame (false)
+     */
+    private boolean single_timer;
+
+    /**
+     * Round trip time estimator, null when the adaptive timeout is disabled
+     */
+    private Rtt_Estimator rtt;
+
+    /**
+     * Selective ACK mode - out of order frames are kept by the receiver
+     */
+    private boolean selective_ack;
+
+    /**
+     * Frames received out of order, indexed by sequence number (selective ACK)
+     */
+    private String[] receiving_buffer;
+
+    /**
+     * Sequence numbers held in receiving_buffer (selective ACK)
+     */
+    private BitSet out_of_order;
+
+    /**
+     * Sequence number after the highest frame sent in the current window
+     */
+    private int highest_sent;
+
+    /**
+     * Number of packets acknowledged by the receiver
+     */
+    private long packets_acked;
+
+    /**
+     * Number of data frames sent more than once
+     */
+    private long frames_retransmitted;
+
+    /**
+     * Acknowledgement policy of the receiver
+     */
+    private Ack_Policy ack_policy;
+    /**
+     * Event trace, null to write the events to the simulator log
+     */
+    private Event_Trace trace;
+    /**
+     * Packs several packets per data frame, null if not used
+     */
+    private Packet_Batcher batcher;
+    /**
+     * Limit the sending window to the receive space advertised by the peer
+     */
+    private boolean flow_control;
+    /**
+     * Receive buffer space last advertised by the peer
+     */
+    private int peer_window;
+    /**
+     * Dynamic sending window, null for a fixed window
+     */
+    private Window_Controller window_controller;
+    /**
+     * A data frame could not be sent because the transmitter was busy; it is
+     * sent on the next DATA_END or ack timer
+     */
+    private boolean send_pending;
+    /**
+     * The transmitter is busy with a data frame (a DATA_END will follow)
+     */
+    private boolean sending_data_frame;
+
 }
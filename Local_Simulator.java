@@ -0,0 +1,546 @@
+/*
+ * Sistemas de Telecomunicacoes
+ *          2022/2023
+ */
+package protocol;
+
+import java.util.Arrays;
+import java.util.PriorityQueue;
+import java.util.Random;
+import simulator.Frame;
+import terminal.NetworkLayer;
+import terminal.Simulator;
+
+/**
+ * Headless discrete-event simulator that runs two protocol instances back to
+ * back in the same JVM, without the Terminal user interface or the network.
+ *
+ * Each side gets its own Simulator and NetworkLayer (Local_Simulator.Side).
+ * Frames take size / bit rate to transmit plus the propagation delay, and
+ * can be lost with the configured probability; a fixed seed makes every run
+ * reproducible. A corrupted frame would be dropped by the CRC of the
+ * receiver, so loss covers it.
+ *
+ * The packets delivered wait in a receive buffer of config.recv_buffer
+ * packets until the application reads them, one every config.read_time ms;
+ * to_network_layer() refuses a packet while the buffer is full and
+ * get_recvbuffsize() returns the free space.
+ *
+ * The frames are events of a priority queue; the data and ack timers of each
+ * side are kept apart in a Timing_Wheel, since the protocols start and
+ * cancel them on almost every frame. A timer that expires at the same time
+ * as an event runs first.
+ *
+ * Usage: java protocol.Local_Simulator protocol_A protocol_B [packets] [loss]
+ * [read_time]
+ */
+public class Local_Simulator {
+
+    /**
+     * Parameters of a simulation run
+     */
+    public static class Config {
+
+        /**
+         * Highest sequence number and sending window
+         */
+        public int max_sequence = 7;
+        public int send_window = 4;
+        /**
+         * Link: propagation delay (ms), bit rate (bit/s) and probability of
+         * losing a frame
+         */
+        public long delay = 100;
+        public long bit_rate = 1000000;
+        public double loss = 0;
+        /**
+         * Timer durations (ms)
+         */
+        public long data_timeout = 500;
+        public long ack_timeout = 50;
+        /**
+         * Packets sent by each side and their size (bytes)
+         */
+        public int packets_a = 1000;
+        public int packets_b = 0;
+        public int packet_size = 100;
+        /**
+         * Receive buffer of the network layers (packets), and time (ms) the
+         * application takes to read a packet from it; with 0 the packets are
+         * read at once and the buffer never fills
+         */
+        public int recv_buffer = 8;
+        public long read_time = 0;
+        /**
+         * Random generator seed
+         */
+        public long seed = 1;
+        /**
+         * The run is stopped at this time (ms) if not finished before
+         */
+        public long max_time = 10000000;
+        /**
+         * Print the protocol logs to System.out
+         */
+        public boolean verbose = false;
+        /**
+         * Keep running after the packets of both sides were delivered, until
+         * no events are left; used when the protocols have their own network
+         * layers (e.g. the sessions of a Session_Mux)
+         */
+        public boolean run_to_end = false;
+    }
+
+    /**
+     * @param config parameters of the run
+     * @param a factory of the protocol of side A
+     * @param b factory of the protocol of side B
+     */
+    public Local_Simulator(Config config, Protocol_Factory a, Protocol_Factory b) {
+        this.config = config;
+        rnd = new Random(config.seed);
+        events = new PriorityQueue<>();
+        now = 0;
+        order = 0;
+        stopped = false;
+        side_a = new Side("A", config.packets_a);
+        side_b = new Side("B", config.packets_b);
+        side_a.peer = side_b;
+        side_b.peer = side_a;
+        side_a.protocol = a.create(side_a, side_a);
+        side_b.protocol = b.create(side_b, side_b);
+    }
+
+    /**
+     * Runs the simulation until both sides delivered all the packets sent by
+     * the peer, no events are left, max_time is reached or a protocol called
+     * stop()
+     *
+     * @return simulation time when the run stopped
+     */
+    public long run() {
+        schedule(0, START, side_a, 0, null);
+        schedule(0, START, side_b, 0, null);
+        while (true) {
+            Event ev = events.peek();
+            long t_ev = ev == null ? Long.MAX_VALUE : ev.time;
+            long t_a = side_a.timers.next_deadline();
+            long t_b = side_b.timers.next_deadline();
+            long t = Math.min(t_ev, Math.min(t_a, t_b));
+            if (t == Long.MAX_VALUE) {
+                break;  // sem eventos
+            }
+            if (t > config.max_time) {
+                now = config.max_time;
+                break;
+            }
+            now = t;
+            if (t_a == t) {
+                side_a.timers.advance(t, side_a);
+            } else if (t_b == t) {
+                side_b.timers.advance(t, side_b);
+            } else {
+                side_a.timers.skip(t);     // nenhum timer expira ate t
+                side_b.timers.skip(t);
+                dispatch(events.poll());
+            }
+            if (!config.run_to_end && side_a.delivered == config.packets_b && side_b.delivered == config.packets_a) {
+                break;  // tudo entregue
+            }
+            if (stopped) {
+                break;  // parado por um protocolo
+            }
+        }
+        side_a.protocol.end_simulation(now);
+        side_b.protocol.end_simulation(now);
+        return now;
+    }
+
+    /**
+     * Calls the protocol callback of an event
+     */
+    private void dispatch(Event ev) {
+        Side s = ev.side;
+        switch (ev.type) {
+            case START:
+                s.protocol.start_simulation(now);
+                break;
+            case DATA_END:
+                s.protocol.handle_Data_end(now, ev.key);
+                break;
+            case ARRIVAL:
+                s.protocol.from_physical_layer(now, ev.frame);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Adds an event to the queue
+     */
+    private void schedule(long time, int type, Side side, int key, Frame frame) {
+        events.add(new Event(time, order++, type, side, key, frame));
+    }
+
+    /**
+     * @return side A (the one that starts with config.packets_a packets)
+     */
+    public Side side_a() {
+        return side_a;
+    }
+
+    /**
+     * @return side B
+     */
+    public Side side_b() {
+        return side_b;
+    }
+
+    /**
+     * @return current simulation time
+     */
+    public long now() {
+        return now;
+    }
+
+    /**
+     * Simulated terminal: the Simulator and NetworkLayer seen by one protocol
+     * instance
+     */
+    public class Side implements Simulator, NetworkLayer, Timing_Wheel.Expiry, Timeout_Control {
+
+        Side(String name, int packets) {
+            this.name = name;
+            this.packets = packets;
+            data_timeout = config.data_timeout;
+            // chave 0: ack timer; chave k + 1: data timer k
+            // uma volta da roda cobre o timer mais longo
+            timers = new Timing_Wheel(config.max_sequence + 2,
+                    (int) Math.max(config.data_timeout, config.ack_timeout) + 1, 1, 0);
+            created = new long[packets];
+            latency = new long[config.packets_a + config.packets_b];
+            StringBuilder sb = new StringBuilder(config.packet_size);
+            for (int i = 0; i < config.packet_size; i++) {
+                sb.append((char) ('a' + i % 26));
+            }
+            padding = sb.toString();
+        }
+
+        /* Simulator */
+        @Override
+        public void Log(String s) {
+            if (config.verbose) {
+                System.out.print(name + " " + now + ": " + s);
+            }
+        }
+
+        @Override
+        public int get_max_sequence() {
+            return config.max_sequence;
+        }
+
+        @Override
+        public int get_send_window() {
+            return config.send_window;
+        }
+
+        @Override
+        public boolean is_sending_data() {
+            return busy_until > now;
+        }
+
+        @Override
+        public boolean to_physical_layer(Frame frame, boolean interrupt) {
+            if (is_sending_data() && !interrupt) {
+                Log("Frame discarded - transmitter busy\n");
+                return false;
+            }
+            int bytes = HEADER_BYTES + (frame.kind() == Frame.DATA_FRAME ? frame.info().length() : 0);
+            long tx_time = Math.max(1, bytes * 8L * 1000 / config.bit_rate);
+            busy_until = now + tx_time;
+            frames_sent++;
+            bytes_sent += bytes;
+            if (frame.kind() == Frame.DATA_FRAME) {
+                data_frames_sent++;
+                schedule(busy_until, DATA_END, this, frame.seq(), null);
+            }
+            if (rnd.nextDouble() < config.loss) {
+                frames_lost++;
+            } else {
+                schedule(busy_until + config.delay, ARRIVAL, peer, 0, frame);
+            }
+            return true;
+        }
+
+        @Override
+        public void start_data_timer(int key) {
+            // chaves alem de max_sequence (e.g. varias sessoes) fazem crescer a roda
+            timers.ensure_keys(key + 2);
+            timers.start(key + 1, now + data_timeout);
+            timers_started++;
+        }
+
+        @Override
+        public void cancel_data_timer(int key) {
+            if (key + 1 < timers.keys()) {
+                timers.cancel(key + 1);
+            }
+        }
+
+        @Override
+        public boolean isactive_data_timer(int key) {
+            return key + 1 < timers.keys() && timers.is_active(key + 1);
+        }
+
+        @Override
+        public void start_ack_timer() {
+            timers.start(ACK_KEY, now + config.ack_timeout);
+        }
+
+        @Override
+        public void cancel_ack_timer() {
+            timers.cancel(ACK_KEY);
+        }
+
+        @Override
+        public void stop() {
+            stopped = true;     // acaba a simulacao depois deste evento
+        }
+
+        /* Timeout_Control */
+        @Override
+        public long data_timeout() {
+            return data_timeout;
+        }
+
+        @Override
+        public void set_data_timeout(long timeout) {
+            data_timeout = Math.max(1, timeout);
+        }
+
+        /**
+         * Calls the protocol callback of a timer expired in the wheel
+         */
+        @Override
+        public void expired(int key, long deadline) {
+            if (key == ACK_KEY) {
+                protocol.handle_ack_Timer(now);
+            } else {
+                protocol.handle_Data_Timer(now, key - 1);
+            }
+        }
+
+        /* NetworkLayer */
+        @Override
+        public String from_network_layer() {
+            if (generated >= packets) {
+                return null;
+            }
+            created[generated] = now;
+            // "<id>:" identifica o pacote no recetor para medir a latencia
+            String id = generated + ":";
+            generated++;
+            return id + padding.substring(Math.min(id.length(), padding.length()));
+        }
+
+        @Override
+        public boolean has_more_packets_to_send() {
+            return generated < packets;
+        }
+
+        @Override
+        public int get_recvbuffsize() {
+            read_packets();
+            return config.recv_buffer - buffered;
+        }
+
+        @Override
+        public boolean to_network_layer(String packet) {
+            read_packets();
+            if (buffered >= config.recv_buffer) {
+                packets_refused++;
+                return false;   // buffer cheio
+            }
+            if (config.read_time > 0) {
+                if (buffered == 0) {
+                    read_end = now + config.read_time;
+                }
+                buffered++;
+            }
+            int sep = packet.indexOf(':');
+            int id = sep > 0 ? Integer.parseInt(packet.substring(0, sep)) : -1;
+            if (id != delivered) {
+                out_of_order++;   // duplicado ou fora de ordem
+                return true;
+            }
+            latency[delivered] = now - peer.created[id];
+            delivered++;
+            return true;
+        }
+
+        /**
+         * Removes from the receive buffer the packets the application read up
+         * to now
+         */
+        private void read_packets() {
+            while (buffered > 0 && read_end <= now) {
+                buffered--;
+                read_end += config.read_time;
+            }
+        }
+
+        /**
+         * @return latencies of the packets delivered to this side, in order
+         */
+        public long[] latencies() {
+            return Arrays.copyOf(latency, delivered);
+        }
+
+        /**
+         * @return protocol instance of this side
+         */
+        public Callbacks protocol() {
+            return protocol;
+        }
+
+        /* Variables */
+        final String name;
+        /**
+         * Packets this side sends, and how many were taken by the protocol
+         */
+        final int packets;
+        int generated;
+        /**
+         * Creation time of each packet sent
+         */
+        final long[] created;
+        /**
+         * Latency of each packet delivered
+         */
+        final long[] latency;
+        /**
+         * Payload filler
+         */
+        final String padding;
+        Side peer;
+        Callbacks protocol;
+        /**
+         * Ack timer (ACK_KEY) and data timers (key + 1), grown when a key
+         * above max_sequence is used
+         */
+        final Timing_Wheel timers;
+        /**
+         * Duration of the data timers, config.data_timeout unless the
+         * protocol changes it
+         */
+        long data_timeout;
+        /**
+         * End of the current transmission
+         */
+        long busy_until;
+        /**
+         * Packets in the receive buffer, and time the application ends
+         * reading the first one
+         */
+        int buffered;
+        long read_end;
+        /**
+         * Counters
+         */
+        public long frames_sent, data_frames_sent, bytes_sent, frames_lost;
+        public long timers_started, out_of_order, packets_refused;
+        public int delivered;
+    }
+
+    /**
+     * Simulation event, ordered by time and then by creation order
+     */
+    static class Event implements Comparable<Event> {
+
+        Event(long time, long order, int type, Side side, int key, Frame frame) {
+            this.time = time;
+            this.order = order;
+            this.type = type;
+            this.side = side;
+            this.key = key;
+            this.frame = frame;
+        }
+
+        @Override
+        public int compareTo(Event o) {
+            return time != o.time ? Long.compare(time, o.time) : Long.compare(order, o.order);
+        }
+
+        final long time, order;
+        final int type;
+        final Side side;
+        final int key;
+        final Frame frame;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: java protocol.Local_Simulator protocol_A protocol_B [packets] [loss] [read_time]");
+            return;
+        }
+        Config config = new Config();
+        config.packets_a = args.length > 2 ? Integer.parseInt(args[2]) : config.packets_a;
+        config.loss = args.length > 3 ? Double.parseDouble(args[3]) : config.loss;
+        config.read_time = args.length > 4 ? Long.parseLong(args[4]) : config.read_time;
+        Local_Simulator s = new Local_Simulator(config, factory(args[0]), factory(args[1]));
+        long t0 = System.nanoTime();
+        long end = s.run();
+        long ns = System.nanoTime() - t0;
+        System.out.printf("%s -> %s: %d/%d packets delivered in %d ms simulated (%.1f ms real), %d data frames sent, %d packets refused%n",
+                args[0], args[1], s.side_b.delivered, config.packets_a, end, ns / 1e6, s.side_a.data_frames_sent,
+                s.side_b.packets_refused);
+    }
+
+    /**
+     * Returns the factory of a protocol class of this package
+     *
+     * @param name class name, e.g. GoBackN
+     */
+    public static Protocol_Factory factory(String name) throws ReflectiveOperationException {
+        java.lang.reflect.Constructor<?> c = Class.forName("protocol." + name)
+                .getConstructor(Simulator.class, NetworkLayer.class);
+        return (sim, net) -> {
+            try {
+                return (Callbacks) c.newInstance(sim, net);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalArgumentException("Cannot create protocol " + name, e);
+            }
+        };
+    }
+
+    /* Variables */
+    /**
+     * Event types
+     */
+    static final int START = 0, DATA_END = 1, ARRIVAL = 2;
+    /**
+     * Timer key of the ack timer in the timing wheels
+     */
+    static final int ACK_KEY = 0;
+    /**
+     * Bytes of the frame header, added to the payload to get the frame size
+     */
+    static final int HEADER_BYTES = 16;
+    private final Config config;
+    private final Random rnd;
+    private final PriorityQueue<Event> events;
+    /**
+     * Current simulation time
+     */
+    private long now;
+    /**
+     * Creation order of the events, breaks ties between events at the same time
+     */
+    private long order;
+    /**
+     * A protocol called stop()
+     */
+    private boolean stopped;
+    private final Side side_a, side_b;
+}
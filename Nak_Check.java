@@ -0,0 +1,202 @@
+/*
+ * Sistemas de Telecomunicacoes
+ *          2022/2023
+ */
+package protocol;
+
+import java.util.BitSet;
+import simulator.Frame;
+import terminal.Simulator;
+
+/**
+ * Regression check of the NAK handling of GoBackN: runs GoBackN on both
+ * sides of the Local_Simulator with lost frames, so that the receiver sends
+ * NAKs, and watches every NAK received by the sender.
+ *
+ * GoBackN ignores a NAK while the data timer of the frame NAKed runs, so the
+ * runs include data timeouts shorter than the round trip and the single
+ * timer mode, where the NAKs are handled. For each NAK the data timers
+ * cancelled and the data frames sent in the same callback are counted. A NAK
+ * may only cancel data timers that are running, all of them when it is
+ * handled, and never more than the sending window; it may resend at most a
+ * window of frames. The cancels per NAK handled are shown next to the
+ * max_sequence + 1 of the version that cancelled every sequence number, and
+ * every packet must be delivered.
+ *
+ * Usage: java protocol.Nak_Check [packets]
+ */
+public class Nak_Check {
+
+    /**
+     * Simulator layer of the sender that counts the calls made while a NAK
+     * is handled
+     */
+    private static class Probe extends Simulator_Filter {
+
+        Probe(Simulator sim) {
+            super(sim);
+            running = new BitSet();
+        }
+
+        @Override
+        public void start_data_timer(int key) {
+            sim.start_data_timer(key);
+            running.set(key);
+        }
+
+        @Override
+        public void cancel_data_timer(int key) {
+            if (in_nak) {
+                cancels++;
+                if (!running.get(key)) {
+                    idle_cancels++;     // timer que nao estava a correr
+                }
+            }
+            sim.cancel_data_timer(key);
+            running.clear(key);
+        }
+
+        @Override
+        public boolean to_physical_layer(Frame frame, boolean interrupt) {
+            if (in_nak && frame.kind() == Frame.DATA_FRAME) {
+                resent++;
+            }
+            return sim.to_physical_layer(frame, interrupt);
+        }
+
+        /**
+         * Data timers running, as started and cancelled by the protocol
+         */
+        final BitSet running;
+        /**
+         * True while the protocol handles a NAK; calls counted in it
+         */
+        boolean in_nak;
+        int cancels, idle_cancels, resent;
+    }
+
+    /**
+     * Layer between the simulator and the sender; checks the calls made for
+     * each NAK
+     */
+    private static class Watch extends Callbacks_Filter {
+
+        Watch(Callbacks protocol, Probe probe, int window) {
+            super(protocol);
+            this.probe = probe;
+            this.window = window;
+        }
+
+        @Override
+        public void handle_Data_Timer(long time, int key) {
+            probe.running.clear(key);   // o timer expirou
+            protocol.handle_Data_Timer(time, key);
+        }
+
+        @Override
+        public void from_physical_layer(long time, Frame frame) {
+            if (frame.kind() != Frame.NAK_FRAME) {
+                protocol.from_physical_layer(time, frame);
+                return;
+            }
+            int running = probe.running.cardinality();
+            probe.in_nak = true;
+            probe.cancels = 0;
+            probe.idle_cancels = 0;
+            probe.resent = 0;
+            protocol.from_physical_layer(time, frame);
+            probe.in_nak = false;
+            naks++;
+            if (probe.cancels > 0 || probe.resent > 0) {
+                handled++;      // o NAK foi tratado, nao ignorado
+            }
+            cancels += probe.cancels;
+            resent += probe.resent;
+            String error = null;
+            if (probe.idle_cancels > 0) {
+                error = probe.idle_cancels + " timers cancelled that were not running";
+            } else if (probe.cancels > 0 && probe.cancels != running) {
+                error = probe.cancels + " timers cancelled of " + running + " running";
+            } else if (probe.cancels > window) {
+                error = probe.cancels + " timers cancelled, window " + window;
+            } else if (probe.resent > window) {
+                error = probe.resent + " frames resent, window " + window;
+            }
+            if (error != null) {
+                if (failures++ < 5) {
+                    System.out.println("  NAK " + frame.nak() + " at " + time + ": " + error);
+                }
+            }
+        }
+
+        final Probe probe;
+        final int window;
+        int naks, handled, failures;
+        long cancels, resent;
+    }
+
+    /**
+     * Runs GoBackN with one configuration and prints the counts
+     *
+     * @return number of failed checks
+     */
+    private static int check(int max_sequence, int window, long timeout, boolean single_timer,
+            double loss, int packets) {
+        Local_Simulator.Config c = new Local_Simulator.Config();
+        c.max_sequence = max_sequence;
+        c.send_window = window;
+        c.data_timeout = timeout;
+        c.loss = loss;
+        c.packets_a = packets;
+        c.recv_buffer = window;
+        Watch[] watch = new Watch[1];
+        Protocol_Factory sender = (sim, net) -> {
+            Probe p = new Probe(sim);
+            GoBackN g = new GoBackN(p, net);
+            g.set_single_timer(single_timer);
+            watch[0] = new Watch(g, p, window);
+            return watch[0];
+        };
+        Local_Simulator s = new Local_Simulator(c, sender, GoBackN::new);
+        s.run();
+        Watch w = watch[0];
+        int delivered = s.side_b().delivered;
+        int failures = w.failures + (delivered == packets ? 0 : 1);
+        System.out.printf("%7d %6d %7d %-6s %5.2f %6d %8d %11.2f %10.2f %12d %9d/%d  %s%n",
+                max_sequence, window, timeout, single_timer ? "single" : "per", loss, w.naks, w.handled,
+                w.handled > 0 ? (double) w.cancels / w.handled : 0,
+                w.handled > 0 ? (double) w.resent / w.handled : 0,
+                max_sequence + 1, delivered, packets, failures == 0 ? "ok" : "FAILED");
+        handled += w.handled;
+        return failures;
+    }
+
+    public static void main(String[] args) {
+        int packets = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        System.out.println("max_seq window timeout timers  loss   NAKs  handled cancels/NAK resent/NAK  old cancels delivered");
+        int failures = 0;
+        for (int[] seq : new int[][]{{7, 4}, {7, 7}, {15, 8}, {63, 32}}) {
+            for (long timeout : new long[]{150, 500}) {
+                for (boolean single : new boolean[]{false, true}) {
+                    for (double loss : new double[]{0.05, 0.2}) {
+                        failures += check(seq[0], seq[1], timeout, single, loss, packets);
+                    }
+                }
+            }
+        }
+        if (handled == 0) {
+            failures++;     // nenhum NAK chegou a ser tratado
+            System.out.println("No NAK was handled");
+        }
+        if (failures > 0) {
+            throw new IllegalStateException(failures + " NAK checks failed");
+        }
+        System.out.println("All NAK checks passed");
+    }
+
+    /* Variables */
+    /**
+     * NAKs handled in all the runs
+     */
+    private static long handled;
+}
@@ -0,0 +1,163 @@
+/*
+ * Sistemas de Telecomunicacoes
+ *          2022/2023
+ */
+package protocol;
+
+import terminal.NetworkLayer;
+
+/**
+ * Packs several network layer packets into the payload of one data frame, so
+ * that the frame header and the transmitter turnaround are paid once per
+ * frame and not once per packet.
+ *
+ * Each packet is written as its length, ':' and its characters; the receiver
+ * unpacks them in order with deliver(). Both ends must use batching. A packet
+ * larger than the frame size limit is sent alone.
+ *
+ * A sender keeps the packet that did not fit in the last frame, and a
+ * receiver the number of packets of a frame that the network layer already
+ * took, so one instance must not be shared by two protocol instances.
+ */
+public class Packet_Batcher {
+
+    /**
+     * @param max_frame maximum size of the packed payload of a frame
+     * (characters)
+     */
+    public Packet_Batcher(int max_frame) {
+        if (max_frame < 1) {
+            throw new IllegalArgumentException("Invalid batch size " + max_frame);
+        }
+        this.max_frame = max_frame;
+        pending = null;
+        frames = 0;
+        packets = 0;
+        delivered = 0;
+    }
+
+    /**
+     * Batcher of a receiver, which only unpacks the frames received (used to
+     * send, it has no frame size limit)
+     */
+    public Packet_Batcher() {
+        this(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Checks if packets remain to be sent, including the one kept from the
+     * last frame
+     *
+     * @param net network layer of the sender
+     * @return true if next_frame() returns a payload
+     */
+    public boolean has_more(NetworkLayer net) {
+        return pending != null || net.has_more_packets_to_send();
+    }
+
+    /**
+     * Takes from the network layer the packets for the next data frame, while
+     * they fit in the frame size limit
+     *
+     * @param net network layer of the sender
+     * @return packed payload of the frame, or null if there are no packets
+     */
+    public String next_frame(NetworkLayer net) {
+        String p = pending != null ? pending : net.from_network_layer();
+        pending = null;
+        if (p == null) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder(max_frame + 8);
+        append(sb, p);
+        int n = 1;
+        while (net.has_more_packets_to_send()) {
+            p = net.from_network_layer();
+            if (p == null) {
+                break;
+            }
+            if (sb.length() + encoded_length(p) > max_frame) {
+                pending = p;    // vai na proxima trama
+                break;
+            }
+            append(sb, p);
+            n++;
+        }
+        frames++;
+        packets += n;
+        return sb.toString();
+    }
+
+    /**
+     * Unpacks the payload of a data frame and delivers its packets to the
+     * network layer, in order. Delivery stops at the first packet refused and
+     * the frame is not accepted; the packets taken before are remembered, so
+     * the next call, with the same frame retransmitted (the receivers only
+     * deliver frame_expected), delivers only the rest.
+     *
+     * @param net network layer of the receiver
+     * @param payload packed payload of the frame
+     * @return true if every packet of the frame was delivered (the frame was
+     * accepted), false if the network layer refused one
+     * @throws IllegalArgumentException if the payload is not a packed frame
+     */
+    public boolean deliver(NetworkLayer net, String payload) {
+        int i = 0;
+        int n = 0;
+        while (i < payload.length()) {
+            int sep = payload.indexOf(':', i);
+            if (sep <= i) {
+                throw new IllegalArgumentException("Invalid packed frame at " + i);
+            }
+            int len = Integer.parseInt(payload.substring(i, sep));
+            int end = sep + 1 + len;
+            if (end > payload.length()) {
+                throw new IllegalArgumentException("Truncated packed frame at " + i);
+            }
+            if (n >= delivered) {   // os anteriores ja foram entregues
+                if (!net.to_network_layer(payload.substring(sep + 1, end))) {
+                    delivered = n;
+                    return false;
+                }
+            }
+            n++;
+            i = end;
+        }
+        delivered = 0;
+        return true;
+    }
+
+    private static void append(StringBuilder sb, String p) {
+        sb.append(p.length()).append(':').append(p);
+    }
+
+    private static int encoded_length(String p) {
+        return Integer.toString(p.length()).length() + 1 + p.length();
+    }
+
+    /**
+     * @return average number of packets per frame sent
+     */
+    public double packets_per_frame() {
+        return frames > 0 ? (double) packets / frames : 0;
+    }
+
+    /* Variables */
+    /**
+     * Size limit of the packed payload
+     */
+    private final int max_frame;
+    /**
+     * Packet taken from the network layer that did not fit in the last frame
+     */
+    private String pending;
+    /**
+     * Frames packed and packets inside them
+     */
+    private long frames, packets;
+    /**
+     * Packets of the frame being received already delivered, when the
+     * network layer refused the next one
+     */
+    private int delivered;
+}
@@ -0,0 +1,28 @@
+/*
+ * Sistemas de Telecomunicacoes
+ *          2022/2023
+ */
+package protocol;
+
+/**
+ * Transformation of the payload of the data frames, applied by Codec_Layer
+ * before the frame is sent and reverted when it is received.
+ *
+ * An instance is used by one protocol instance only and may keep state
+ * between calls (buffers, compressor).
+ */
+public interface Payload_Codec {
+
+    /**
+     * @param payload payload given by the protocol
+     * @return payload sent in the frame
+     */
+    String encode(String payload);
+
+    /**
+     * @param payload payload received in the frame
+     * @return payload given to the protocol
+     * @throws IllegalArgumentException if the payload cannot be decoded
+     */
+    String decode(String payload);
+}
@@ -0,0 +1,511 @@
+/*
+ * Sistemas de Telecomunicacoes
+ *          2022/2023
+ */
+package protocol;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.PriorityQueue;
+import java.util.Random;
+import simulator.Frame;
+
+/**
+ * Micro benchmark of the protocol callbacks (from_physical_layer,
+ * handle_Data_end, handle_Data_Timer) driven through Bench_Terminal.
+ *
+ * For each protocol, window size, sequence space and loss rate it reports the
+ * time and the bytes allocated per packet delivered; the GoBackN/nak rows use
+ * a receiver that answers losses with NAKs. It then reports, for each
+ * payload codec and packet size, the time spent coding a payload against the
+ * airtime saved by the shorter frame, the cost of Frame_Codec and the cost of
+ * the timers in a Timing_Wheel and in a PriorityQueue. Run with
+ * java protocol.Protocol_Bench [packets]
+ */
+public class Protocol_Bench {
+
+    public static void main(String[] args) {
+        int packets = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int[] max_sequences = {7, 255, 65535};
+        int[] windows = {1, 8, 64, 1024};
+        double[] losses = {0, 0.01, 0.1};
+
+        System.out.println("protocol       max_seq  window   loss   ns/packet  bytes/packet");
+        for (int max_seq : max_sequences) {
+            for (int window : windows) {
+                if (window > max_seq) {
+                    continue;
+                }
+                for (double loss : losses) {
+                    sender("Utopian_snd", Utopian_snd::new, false, false, max_seq, window, loss, packets);
+                    sender("Simplex_snd", Simplex_snd::new, true, false, max_seq, window, loss, packets);
+                    sender("StopWait", StopWait::new, true, false, max_seq, window, loss, packets);
+                    sender("GoBackN", GoBackN::new, true, false, max_seq, window, loss, packets);
+                    if (loss > 0 && window > 1) {   // sem janela nao ha tramas fora de ordem
+                        sender("GoBackN/nak", GoBackN::new, true, true, max_seq, window, loss, packets);
+                    }
+                    receiver("Utopian_rcv", Utopian_rcv::new, max_seq, window, loss, packets);
+                    receiver("Simplex_rcv", Simplex_rcv::new, max_seq, window, loss, packets);
+                }
+            }
+        }
+
+        System.out.println();
+        System.out.println("codec          packet  coded   ns/frame  bytes/frame  saved_us@64k  saved_us@1M");
+        for (int size : new int[]{PACKET_SIZE, 256, 1024, 4096}) {
+            codec("Deflate", new Deflate_Codec(null), size, packets / 10);
+            codec("Deflate+dict", new Deflate_Codec(Codec_Layer.DICTIONARY), size, packets / 10);
+        }
+
+        System.out.println();
+        System.out.println("frame codec    packet  wire_bytes  ns/frame  bytes/frame");
+        for (int size : new int[]{0, PACKET_SIZE, 1024}) {
+            frame_codec("read", false, size, packets);
+            frame_codec("decode", true, size, packets);
+        }
+
+        System.out.println();
+        System.out.println("timers          window   ns/op  bytes/op");
+        for (int window : new int[]{8, 64, 512, 4096, 65536}) {
+            timers("Timing_Wheel", new Wheel_Timers(window, timeout(window)), window, packets);
+            timers("PriorityQueue", new Queue_Timers(window), window, packets);
+        }
+    }
+
+    /**
+     * Benchmarks a sender: every data frame ends its transmission at once and,
+     * unless lost, is acknowledged by an ideal receiver; lost frames are
+     * recovered by firing the data timers.
+     *
+     * With naks the receiver also sends a NAK of the frame it expects on the
+     * first frame received out of order after a loss. The NAK reaches the
+     * sender while the next frame is being sent and after the data timer of
+     * the frame lost expired, as with a data timeout shorter than the NAK
+     * turnaround; only then GoBackN acts on a NAK (it ignores a NAK while the
+     * timer of the frame runs), going back to the frame NAKed with the timers
+     * of the window already cancelled by the timeout.
+     */
+    private static void sender(String name, Protocol_Factory factory, boolean acks, boolean naks,
+            int max_seq, int window, double loss, int packets) {
+        Bench_Terminal t = new Bench_Terminal(max_seq, window, PACKET_SIZE);
+        Frame[] ack_frames = new Frame[max_seq + 1];
+        Frame[] nak_frames = null;
+        for (int i = 0; i <= max_seq; i++) {
+            ack_frames[i] = Frame.new_Ack_Frame(i, window);
+        }
+        if (naks) {
+            nak_frames = new Frame[max_seq + 1];
+            for (int i = 0; i <= max_seq; i++) {
+                nak_frames[i] = Frame.new_Nak_Frame(i, window);
+            }
+        }
+        run_sender(t, factory, acks, ack_frames, nak_frames, loss, packets / 10);   // aquecimento
+        long bytes0 = allocated_bytes();
+        long t0 = System.nanoTime();
+        long delivered = run_sender(t, factory, acks, ack_frames, nak_frames, loss, packets);
+        long ns = System.nanoTime() - t0;
+        report(name, max_seq, window, loss, ns, allocated_bytes() - bytes0, delivered);
+    }
+
+    /**
+     * @param nak_frames NAK frames sent by the receiver, or null for a
+     * receiver without NAKs
+     */
+    private static long run_sender(Bench_Terminal t, Protocol_Factory factory, boolean acks,
+            Frame[] ack_frames, Frame[] nak_frames, double loss, int packets) {
+        t.reset();
+        Random rnd = new Random(SEED);
+        Callbacks p = factory.create(t, t);
+        int max_seq = ack_frames.length - 1;
+        int expected = 0;
+        boolean nak_sent = false;
+        int nak_due = -1;
+        long delivered = 0;
+        long time = 0;
+        p.start_simulation(time);
+        while (delivered < packets && !t.stopped()) {
+            time++;
+            if (nak_due >= 0) {
+                // o NAK chega depois do timer da trama perdida expirar
+                if (t.isactive_data_timer(nak_due)) {
+                    t.expire_data_timer(nak_due);
+                    p.handle_Data_Timer(time, nak_due);
+                }
+                p.from_physical_layer(time, nak_frames[nak_due]);
+                nak_due = -1;
+            }
+            Frame f = t.take_frame();
+            if (f != null) {
+                p.handle_Data_end(time, f.seq());
+                if (rnd.nextDouble() >= loss) {
+                    if (!acks) {
+                        delivered++;
+                    } else if (f.seq() == expected) {
+                        expected = expected == max_seq ? 0 : expected + 1;
+                        delivered++;
+                        nak_sent = false;
+                        p.from_physical_layer(time, ack_frames[f.seq()]);
+                    } else if (nak_frames != null && !nak_sent) {
+                        nak_sent = true;    // um NAK por perda
+                        nak_due = expected;
+                    }
+                }
+                continue;
+            }
+            // o timer mais antigo e o da trama que o recetor espera
+            int key = t.isactive_data_timer(expected) ? expected : t.first_data_timer();
+            if (key >= 0) {
+                t.expire_data_timer(key);
+                p.handle_Data_Timer(time, key);
+                continue;
+            }
+            if (t.expire_ack_timer()) {
+                p.handle_ack_Timer(time);
+                continue;
+            }
+            break;  // o protocolo parou
+        }
+        p.end_simulation(time);
+        return delivered;
+    }
+
+    /**
+     * Benchmarks a receiver fed with data frames in order; a lost frame is
+     * replaced by the next one, received out of order
+     */
+    private static void receiver(String name, Protocol_Factory factory,
+            int max_seq, int window, double loss, int packets) {
+        Bench_Terminal t = new Bench_Terminal(max_seq, window, PACKET_SIZE);
+        String packet = t.from_network_layer();
+        Frame[] data_frames = new Frame[max_seq + 1];
+        for (int i = 0; i <= max_seq; i++) {
+            data_frames[i] = Frame.new_Data_Frame(i, max_seq, window, packet);
+        }
+        run_receiver(t, factory, data_frames, loss, packets / 10);   // aquecimento
+        long bytes0 = allocated_bytes();
+        long t0 = System.nanoTime();
+        long delivered = run_receiver(t, factory, data_frames, loss, packets);
+        long ns = System.nanoTime() - t0;
+        report(name, max_seq, window, loss, ns, allocated_bytes() - bytes0, delivered);
+    }
+
+    private static long run_receiver(Bench_Terminal t, Protocol_Factory factory,
+            Frame[] data_frames, double loss, int packets) {
+        t.reset();
+        Random rnd = new Random(SEED);
+        Callbacks p = factory.create(t, t);
+        int max_seq = data_frames.length - 1;
+        int expected = 0;
+        long time = 0;
+        p.start_simulation(time);
+        while (t.packets_delivered < packets && !t.stopped()) {
+            time++;
+            if (rnd.nextDouble() < loss) {
+                p.from_physical_layer(time, data_frames[expected == max_seq ? 0 : expected + 1]);
+            } else {
+                p.from_physical_layer(time, data_frames[expected]);
+                expected = expected == max_seq ? 0 : expected + 1;
+            }
+            t.take_frame();
+            if (t.expire_ack_timer()) {
+                p.handle_ack_Timer(time);
+            }
+        }
+        p.end_simulation(time);
+        return t.packets_delivered;
+    }
+
+    /**
+     * Benchmarks a payload codec: encodes and decodes payloads like the ones
+     * of Local_Simulator and reports the CPU time per frame against the
+     * airtime saved at 64 kbit/s and at 1 Mbit/s
+     */
+    private static void codec(String name, Payload_Codec codec, int size, int frames) {
+        StringBuilder sb = new StringBuilder(size);
+        for (int i = 0; i < size; i++) {
+            sb.append((char) ('a' + i % 26));
+        }
+        String padding = sb.toString();
+        String[] payloads = new String[1024];
+        for (int i = 0; i < payloads.length; i++) {
+            String id = i + ":";
+            payloads[i] = id + padding.substring(Math.min(id.length(), size));
+        }
+        run_codec(codec, payloads, frames / 10);    // aquecimento
+        long bytes0 = allocated_bytes();
+        long t0 = System.nanoTime();
+        long coded = run_codec(codec, payloads, frames);
+        long ns = System.nanoTime() - t0;
+        long bytes = allocated_bytes() - bytes0;
+        double saved = size - (double) coded / frames;  // bytes por trama
+        System.out.printf("%-13s %7d %5.1f%% %10.1f %12s %13.1f %12.2f%n", name, size,
+                100 * (1 - saved / size), (double) ns / frames,
+                bytes < 0 ? "n/a" : String.format("%.1f", (double) bytes / frames),
+                saved * 8 * 1e6 / 64000, saved * 8 * 1e6 / 1000000);
+    }
+
+    /**
+     * @return total length of the coded payloads
+     */
+    private static long run_codec(Payload_Codec codec, String[] payloads, int frames) {
+        long coded = 0;
+        for (int i = 0; i < frames; i++) {
+            String s = payloads[i & (payloads.length - 1)];
+            String c = codec.encode(s);
+            if (codec.decode(c).length() != s.length()) {
+                throw new IllegalStateException("Codec round trip failed");
+            }
+            coded += c.length();
+        }
+        return coded;
+    }
+
+    /**
+     * Benchmarks Frame_Codec: encodes a data frame into a direct buffer and
+     * reads it back, only the fields (read) or as a Frame (decode)
+     */
+    private static void frame_codec(String name, boolean decode, int size, int frames) {
+        Bench_Terminal t = new Bench_Terminal(7, 4, size);
+        Frame f = Frame.new_Data_Frame(3, 5, 4, t.from_network_layer());
+        Frame_Codec codec = new Frame_Codec();
+        ByteBuffer buf = ByteBuffer.allocateDirect(Frame_Codec.frame_bytes(Frame_Codec.MAX_PAYLOAD));
+        run_frame_codec(codec, buf, f, decode, frames / 10);   // aquecimento
+        long bytes0 = allocated_bytes();
+        long t0 = System.nanoTime();
+        run_frame_codec(codec, buf, f, decode, frames);
+        long ns = System.nanoTime() - t0;
+        long bytes = allocated_bytes() - bytes0;
+        System.out.printf("%-13s %7d %11d %9.1f %12s%n", name, size, Frame_Codec.frame_bytes(size),
+                (double) ns / frames, bytes < 0 ? "n/a" : String.format("%.1f", (double) bytes / frames));
+    }
+
+    private static void run_frame_codec(Frame_Codec codec, ByteBuffer buf, Frame f, boolean decode, int frames) {
+        for (int i = 0; i < frames; i++) {
+            buf.clear();
+            codec.encode(f, buf);
+            buf.flip();
+            if (decode ? codec.decode(buf) == null : !codec.read(buf)) {
+                throw new IllegalStateException("Frame codec round trip failed");
+            }
+        }
+    }
+
+    /**
+     * Timer set of the timers benchmark
+     */
+    private interface Timer_Set {
+
+        void start(int key, long deadline);
+
+        void cancel(int key);
+
+        boolean is_active(int key);
+
+        /**
+         * @return number of timers expired up to now
+         */
+        int advance(long now);
+    }
+
+    /**
+     * Timers in a Timing_Wheel, as in Local_Simulator
+     */
+    private static class Wheel_Timers implements Timer_Set, Timing_Wheel.Expiry {
+
+        /**
+         * @param keys number of timer keys
+         * @param timeout timer duration; one turn of the wheel covers it
+         */
+        Wheel_Timers(int keys, long timeout) {
+            wheel = new Timing_Wheel(keys, (int) timeout + 1, 1, 0);
+        }
+
+        @Override
+        public void start(int key, long deadline) {
+            wheel.start(key, deadline);
+        }
+
+        @Override
+        public void cancel(int key) {
+            wheel.cancel(key);
+        }
+
+        @Override
+        public boolean is_active(int key) {
+            return wheel.is_active(key);
+        }
+
+        @Override
+        public int advance(long now) {
+            return wheel.advance(now, this);
+        }
+
+        @Override
+        public void expired(int key, long deadline) {
+            // so conta
+        }
+
+        private final Timing_Wheel wheel;
+    }
+
+    /**
+     * Timers as events of a PriorityQueue, cancelled by a flag and removed
+     * when they reach the head (the previous Local_Simulator timers)
+     */
+    private static class Queue_Timers implements Timer_Set {
+
+        Queue_Timers(int keys) {
+            queue = new PriorityQueue<>();
+            timers = new Timer[keys];
+        }
+
+        @Override
+        public void start(int key, long deadline) {
+            cancel(key);
+            timers[key] = new Timer(deadline, order++, key);
+            queue.add(timers[key]);
+        }
+
+        @Override
+        public void cancel(int key) {
+            if (timers[key] != null) {
+                timers[key].cancelled = true;
+                timers[key] = null;
+            }
+        }
+
+        @Override
+        public boolean is_active(int key) {
+            return timers[key] != null;
+        }
+
+        @Override
+        public int advance(long now) {
+            int n = 0;
+            while (!queue.isEmpty() && queue.peek().deadline <= now) {
+                Timer t = queue.poll();
+                if (!t.cancelled) {
+                    timers[t.key] = null;
+                    n++;
+                }
+            }
+            return n;
+        }
+
+        private static class Timer implements Comparable<Timer> {
+
+            Timer(long deadline, long order, int key) {
+                this.deadline = deadline;
+                this.order = order;
+                this.key = key;
+            }
+
+            @Override
+            public int compareTo(Timer o) {
+                return deadline != o.deadline ? Long.compare(deadline, o.deadline) : Long.compare(order, o.order);
+            }
+
+            final long deadline, order;
+            final int key;
+            boolean cancelled;
+        }
+
+        private final PriorityQueue<Timer> queue;
+        private final Timer[] timers;
+        private long order;
+    }
+
+    /**
+     * Benchmarks a timer set with the timer pattern of Go-Back-N: one timer
+     * started per frame sent, the oldest cancelled per ACK, a lookup per
+     * frame, the whole window cancelled and restarted on a NAK every NAK_EVERY
+     * frames and, with no ACK now and then, the oldest timer expiring
+     */
+    private static void timers(String name, Timer_Set timers, int window, int frames) {
+        run_timers(timers, window, frames / 10, 0);    // aquecimento
+        long bytes0 = allocated_bytes();
+        long t0 = System.nanoTime();
+        long ops = run_timers(timers, window, frames, frames / 10 + 1);
+        long ns = System.nanoTime() - t0;
+        long bytes = allocated_bytes() - bytes0;
+        System.out.printf("%-13s %8d %7.1f %9s%n", name, window, (double) ns / ops,
+                bytes < 0 ? "n/a" : String.format("%.1f", (double) bytes / ops));
+    }
+
+    /**
+     * @return number of timer operations
+     */
+    private static long run_timers(Timer_Set timers, int window, int frames, long start) {
+        Random rnd = new Random(SEED);
+        long timeout = timeout(window);
+        long time = start;
+        long ops = 0;
+        int oldest = 0, next = 0, outstanding = 0;
+        for (int i = 0; i < frames; i++) {
+            time++;
+            int expired = timers.advance(time);
+            ops += 1 + expired;
+            if (expired > 0) {
+                outstanding = 0;    // timeout: volta ao inicio da janela
+                next = oldest;
+            }
+            if (outstanding == window || outstanding > 0 && rnd.nextInt(100) < 99) {
+                timers.cancel(oldest);  // ack da trama mais antiga
+                oldest = oldest + 1 == window ? 0 : oldest + 1;
+                outstanding--;
+                ops++;
+            }
+            if (!timers.is_active(next)) {
+                timers.start(next, time + timeout);
+                ops++;
+            }
+            ops++;
+            next = next + 1 == window ? 0 : next + 1;
+            outstanding++;
+            if (i % NAK_EVERY == NAK_EVERY - 1) {
+                // nak: cancela e volta a iniciar os timers da janela
+                for (int k = 0, key = oldest; k < outstanding; k++, key = key + 1 == window ? 0 : key + 1) {
+                    timers.cancel(key);
+                    timers.start(key, time + timeout);
+                }
+                ops += 2L * outstanding;
+            }
+        }
+        for (int key = 0; key < window; key++) {
+            timers.cancel(key);
+        }
+        return ops;
+    }
+
+    /**
+     * @return timer duration of the timers benchmark, longer than a window
+     * of frames
+     */
+    private static long timeout(int window) {
+        return 2L * window + 100;
+    }
+
+    private static void report(String name, int max_seq, int window, double loss,
+            long ns, long bytes, long delivered) {
+        System.out.printf("%-13s %8d %7d %6.2f %11.1f %13s%n", name, max_seq, window, loss,
+                delivered > 0 ? (double) ns / delivered : Double.NaN,
+                bytes < 0 ? "n/a" : String.format("%.1f", delivered > 0 ? (double) bytes / delivered : Double.NaN));
+    }
+
+    /**
+     * @return bytes allocated so far by the current thread, or -1 if the JVM
+     * does not measure it
+     */
+    private static long allocated_bytes() {
+        java.lang.management.ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        if (mx instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) mx).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /* Variables */
+    private static final long SEED = 12345;
+    private static final int PACKET_SIZE = 64;
+    private static final int NAK_EVERY = 1000;
+}
@@ -0,0 +1,17 @@
+/*
+ * Sistemas de Telecomunicacoes
+ *          2022/2023
+ */
+package protocol;
+
+import terminal.NetworkLayer;
+import terminal.Simulator;
+
+/**
+ * Creates a protocol instance bound to a simulator and a network layer; the
+ * protocol constructors match it (e.g. GoBackN::new)
+ */
+public interface Protocol_Factory {
+
+    Callbacks create(Simulator sim, NetworkLayer net);
+}
@@ -0,0 +1,336 @@
+/*
+ * Sistemas de Telecomunicacoes
+ *          2022/2023
+ */
+package protocol;
+
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicLongArray;
+import simulator.Frame;
+import terminal.NetworkLayer;
+import terminal.Simulator;
+
+/**
+ * Counters of a protocol instance: frames sent and retransmitted, NAKs,
+ * timers started and cancelled, packets delivered, histograms of the window
+ * occupancy and of the delivery latency.
+ *
+ * The counters are filled by a layer placed around the protocol (see
+ * metered()), so every protocol class is counted without changing it. They
+ * are kept in an AtomicLongArray: updates are lock-free and snapshot() can be
+ * called from any thread while the simulation runs.
+ */
+public class Protocol_Metrics {
+
+    /**
+     * Counter indexes
+     */
+    public static final int DATA_SENT = 0;
+    public static final int DATA_RETRANSMITTED = 1;
+    public static final int ACK_SENT = 2;
+    public static final int NAK_SENT = 3;
+    public static final int SEND_REFUSED = 4;
+    public static final int FRAMES_RECEIVED = 5;
+    public static final int NAK_RECEIVED = 6;
+    public static final int TIMERS_STARTED = 7;
+    public static final int TIMERS_CANCELLED = 8;
+    public static final int DATA_TIMEOUTS = 9;
+    public static final int ACK_TIMEOUTS = 10;
+    public static final int PACKETS_DELIVERED = 11;
+    public static final int PACKETS_SENT = 12;
+    public static final int LAST_TIME = 13;
+    /**
+     * Buckets of each histogram
+     */
+    public static final int BUCKETS = 32;
+    /**
+     * First bucket of the window occupancy histogram; bucket i counts the data
+     * frames sent with 2^(i-1) to 2^i - 1 data timers running (i = 0 for
+     * none)
+     */
+    public static final int WINDOW_HISTOGRAM = 14;
+    /**
+     * First bucket of the delivery latency histogram (time from the first
+     * transmission of a frame to its acknowledgement), same bucket scheme
+     */
+    public static final int LATENCY_HISTOGRAM = WINDOW_HISTOGRAM + BUCKETS;
+    /**
+     * Size of a snapshot
+     */
+    public static final int SIZE = LATENCY_HISTOGRAM + BUCKETS;
+
+    private static final String[] NAMES = {"data sent", "data retransmitted", "ack sent",
+        "nak sent", "send refused", "frames received", "nak received", "timers started",
+        "timers cancelled", "data timeouts", "ack timeouts", "packets delivered", "packets sent",
+        "time"};
+
+    public Protocol_Metrics() {
+        counters = new AtomicLongArray(SIZE);
+    }
+
+    /**
+     * Returns a factory that builds the protocol of f with this metrics layer
+     * around it
+     *
+     * @param f factory of the protocol to measure
+     * @return factory of the metered protocol
+     */
+    public Protocol_Factory metered(Protocol_Factory f) {
+        return (sim, net) -> {
+            Probe probe = new Probe(sim, net);
+            return new Meter(f.create(probe, probe), probe);
+        };
+    }
+
+    /**
+     * @return copy of all the counters, indexed by the constants of this class
+     */
+    public long[] snapshot() {
+        long[] s = new long[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            s[i] = counters.get(i);
+        }
+        return s;
+    }
+
+    /**
+     * @param index counter index
+     * @return current value of the counter
+     */
+    public long get(int index) {
+        return counters.get(index);
+    }
+
+    /**
+     * Formats a snapshot for the simulation log
+     *
+     * @param s snapshot of the counters
+     * @return text with one counter per line
+     */
+    public static String format(long[] s) {
+        StringBuilder sb = new StringBuilder("Metrics:\n");
+        for (int i = 0; i < NAMES.length; i++) {
+            sb.append("  ").append(NAMES[i]).append(": ").append(s[i]).append('\n');
+        }
+        long delivered = s[PACKETS_DELIVERED];
+        if (s[LAST_TIME] > 0) {
+            sb.append(String.format("  goodput: %.3f packets/s%n", delivered * 1000.0 / s[LAST_TIME]));
+        }
+        if (s[DATA_SENT] > 0) {
+            sb.append(String.format("  retransmit ratio: %.3f%n", (double) s[DATA_RETRANSMITTED] / s[DATA_SENT]));
+        }
+        sb.append("  window occupancy:").append(histogram(s, WINDOW_HISTOGRAM)).append('\n');
+        sb.append("  delivery latency:").append(histogram(s, LATENCY_HISTOGRAM)).append('\n');
+        return sb.toString();
+    }
+
+    private static String histogram(long[] s, int first) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < BUCKETS; i++) {
+            if (s[first + i] > 0) {
+                sb.append(' ').append(i == 0 ? 0 : 1L << (i - 1)).append("+:").append(s[first + i]);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Histogram bucket of a value: 0 for 0, else 1 + floor(log2(v))
+     */
+    private static int bucket(long v) {
+        return v <= 0 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(v));
+    }
+
+    private void add(int index) {
+        counters.incrementAndGet(index);
+    }
+
+    /**
+     * Layer between the protocol and the simulator / network layer; observes
+     * the commands given by the protocol
+     */
+    private class Probe extends Simulator_Filter implements NetworkLayer {
+
+        Probe(Simulator sim, NetworkLayer net) {
+            super(sim);
+            this.net = net;
+            int n = sim.get_max_sequence() + 1;
+            last_info = new String[n];
+            first_sent = new long[n];
+            timers = new BitSet(n);
+        }
+
+        @Override
+        public boolean to_physical_layer(Frame frame, boolean interrupt) {
+            boolean sent = sim.to_physical_layer(frame, interrupt);
+            if (!sent) {
+                add(SEND_REFUSED);
+                return false;
+            }
+            if (frame.kind() == Frame.DATA_FRAME) {
+                add(DATA_SENT);
+                // a retransmissao reenvia o mesmo pacote (a mesma String) com o mesmo numero
+                if (last_info[frame.seq()] == frame.info()) {
+                    add(DATA_RETRANSMITTED);
+                } else {
+                    last_info[frame.seq()] = frame.info();
+                    first_sent[frame.seq()] = now;
+                }
+                add(WINDOW_HISTOGRAM + bucket(running));
+            } else if (frame.kind() == Frame.ACK_FRAME) {
+                add(ACK_SENT);
+            } else if (frame.kind() == Frame.NAK_FRAME) {
+                add(NAK_SENT);
+            }
+            return true;
+        }
+
+        @Override
+        public void start_data_timer(int key) {
+            sim.start_data_timer(key);
+            if (!timers.get(key)) {
+                timers.set(key);
+                running++;
+            }
+            add(TIMERS_STARTED);
+        }
+
+        @Override
+        public void cancel_data_timer(int key) {
+            sim.cancel_data_timer(key);
+            if (timers.get(key)) {
+                timers.clear(key);
+                running--;
+                add(TIMERS_CANCELLED);
+                if (acknowledging && last_info[key] != null) {
+                    add(LATENCY_HISTOGRAM + bucket(now - first_sent[key]));
+                    last_info[key] = null;
+                }
+            }
+        }
+
+        /* NetworkLayer */
+        @Override
+        public String from_network_layer() {
+            String p = net.from_network_layer();
+            if (p != null) {
+                add(PACKETS_SENT);
+            }
+            return p;
+        }
+
+        @Override
+        public boolean has_more_packets_to_send() {
+            return net.has_more_packets_to_send();
+        }
+
+        @Override
+        public int get_recvbuffsize() {
+            return net.get_recvbuffsize();
+        }
+
+        @Override
+        public boolean to_network_layer(String packet) {
+            boolean ok = net.to_network_layer(packet);
+            if (ok) {
+                add(PACKETS_DELIVERED);
+            }
+            return ok;
+        }
+
+        final NetworkLayer net;
+        /**
+         * Last packet sent with each sequence number, to detect retransmissions
+         */
+        final String[] last_info;
+        /**
+         * Time of the first transmission of each outstanding frame
+         */
+        final long[] first_sent;
+        /**
+         * Data timers running
+         */
+        final BitSet timers;
+        int running;
+        /**
+         * Time of the event being handled
+         */
+        long now;
+        /**
+         * True while the protocol handles an ACK or a data frame (timers
+         * cancelled then are acknowledgements)
+         */
+        boolean acknowledging;
+    }
+
+    /**
+     * Layer between the simulator and the protocol; observes the events
+     */
+    private class Meter extends Callbacks_Filter {
+
+        Meter(Callbacks protocol, Probe probe) {
+            super(protocol);
+            this.probe = probe;
+        }
+
+        @Override
+        public void start_simulation(long time) {
+            probe.now = time;
+            protocol.start_simulation(time);
+        }
+
+        @Override
+        public void handle_Data_end(long time, int seq) {
+            probe.now = time;
+            protocol.handle_Data_end(time, seq);
+        }
+
+        @Override
+        public void handle_Data_Timer(long time, int key) {
+            probe.now = time;
+            if (probe.timers.get(key)) {
+                probe.timers.clear(key);
+                probe.running--;
+            }
+            add(DATA_TIMEOUTS);
+            protocol.handle_Data_Timer(time, key);
+        }
+
+        @Override
+        public void handle_ack_Timer(long time) {
+            probe.now = time;
+            add(ACK_TIMEOUTS);
+            protocol.handle_ack_Timer(time);
+        }
+
+        @Override
+        public void from_physical_layer(long time, Frame frame) {
+            probe.now = time;
+            add(FRAMES_RECEIVED);
+            if (frame.kind() == Frame.NAK_FRAME) {
+                add(NAK_RECEIVED);
+            }
+            probe.acknowledging = frame.kind() != Frame.NAK_FRAME;
+            try {
+                protocol.from_physical_layer(time, frame);
+            } finally {
+                probe.acknowledging = false;
+            }
+        }
+
+        @Override
+        public void end_simulation(long time) {
+            counters.set(LAST_TIME, time);
+            protocol.end_simulation(time);
+            probe.Log(format(snapshot()));
+        }
+
+        final Probe probe;
+    }
+
+    /* Variables */
+    /**
+     * Counters and histograms
+     */
+    private final AtomicLongArray counters;
+}
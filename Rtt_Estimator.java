@@ -0,0 +1,258 @@
+/*
+ * Sistemas de Telecomunicacoes
+ *          2022/2023
+ */
+package protocol;
+
+import terminal.Simulator;
+
+/**
+ * Round trip time estimator (Jacobson/Karn) shared by the protocols that
+ * retransmit on timeout.
+ *
+ * Send times are recorded per sequence number when the data frame ends its
+ * transmission; frames that were retransmitted are not sampled (Karn's rule).
+ *
+ * When the simulator runs its own timers (Timeout_Control, e.g.
+ * Local_Simulator and Udp_Terminal) the data timers last the RTO: it starts
+ * at the configured duration, follows the samples and doubles after each
+ * timeout (RFC 6298), so a loss is recovered as soon as the estimate allows,
+ * earlier than the configured timer when the round trip is shorter.
+ *
+ * The course simulator data timer has a fixed duration, which the estimator
+ * learns from the timer expiries (the time since the frame was sent). There
+ * the estimate only suppresses spurious retransmissions and can never
+ * retransmit earlier than the timer: it is restarted while the frame may
+ * still be in flight, i.e. sent less than one RTO and less than 5/4 of the
+ * smoothed RTT ago (the RTO of the first samples is several RTTs, and each
+ * restart costs a whole timer). Before the first sample the RTO is the timer
+ * duration. The backoff after a timeout goes up to twice the timer duration
+ * before the first sample, so a timer shorter than the round trip time still
+ * lets a frame be acknowledged without retransmission, and afterwards up to
+ * the larger of the timer duration and the sampled RTO; the next sample
+ * resets it.
+ */
+public class Rtt_Estimator {
+
+    /**
+     * @param max_sequence highest sequence number used by the protocol
+     * @param initial_rto retransmission timeout used before the first sample,
+     * or 0 to use the duration of the data timer
+     * @param sim simulator of the protocol; its data timers follow the RTO
+     * if it implements Timeout_Control, or null
+     */
+    public Rtt_Estimator(int max_sequence, long initial_rto, Simulator sim) {
+        sent_time = new long[max_sequence + 1];
+        retransmitted = new boolean[max_sequence + 1];
+        outstanding = new boolean[max_sequence + 1];
+        srtt = 0;
+        rttvar = 0;
+        rto = initial_rto;
+        sampled_rto = 0;
+        timer = 0;
+        has_sample = false;
+        control = null;
+        if (sim instanceof Timeout_Control && ((Timeout_Control) sim).data_timeout() > 0) {
+            control = (Timeout_Control) sim;
+            timer = control.data_timeout();
+            rto = initial_rto > 0 ? initial_rto : timer;
+            control.set_data_timeout(rto);
+        }
+    }
+
+    /**
+     * Estimator that starts with the duration of the data timer
+     *
+     * @param max_sequence highest sequence number used by the protocol
+     * @param sim simulator of the protocol
+     */
+    public Rtt_Estimator(int max_sequence, Simulator sim) {
+        this(max_sequence, 0, sim);
+    }
+
+    /**
+     * Estimator for a simulator with data timers of fixed duration
+     *
+     * @param max_sequence highest sequence number used by the protocol
+     */
+    public Rtt_Estimator(int max_sequence) {
+        this(max_sequence, 0, null);
+    }
+
+    /**
+     * Records the end of transmission of a data frame
+     *
+     * @param seq sequence number of the Data frame
+     * @param time current simulation time
+     */
+    public void on_sent(int seq, long time) {
+        if (outstanding[seq]) {
+            retransmitted[seq] = true;  // Karn: esta trama ja nao da amostra
+        } else {
+            outstanding[seq] = true;
+            retransmitted[seq] = false;
+        }
+        sent_time[seq] = time;
+    }
+
+    /**
+     * Records the acknowledgement of a data frame and updates the estimate if
+     * the frame was sent only once
+     *
+     * @param seq sequence number of the Data frame
+     * @param time current simulation time
+     */
+    public void on_acked(int seq, long time) {
+        if (outstanding[seq] && !retransmitted[seq]) {
+            sample(time - sent_time[seq]);
+        }
+        outstanding[seq] = false;
+    }
+
+    /**
+     * Forgets a data frame acknowledged cumulatively, without sampling it
+     *
+     * @param seq sequence number of the Data frame
+     */
+    public void discard(int seq) {
+        outstanding[seq] = false;
+    }
+
+    /**
+     * Backs off the timeout after a retransmission timeout: doubles it when
+     * the data timers follow the RTO; with a fixed timer, up to twice the
+     * timer duration before the first sample and up to the larger of the
+     * timer duration and the sampled RTO afterwards
+     */
+    public void on_timeout() {
+        long limit;
+        if (control != null) {
+            // nunca acima do timer configurado, salvo se o RTO amostrado ja for maior
+            limit = has_sample ? Math.max(sampled_rto, Math.min(2 * sampled_rto, timer)) : 2 * timer;
+        } else {
+            limit = has_sample ? Math.max(timer, sampled_rto) : 2 * timer;
+        }
+        rto = Math.max(rto, Math.min(2 * rto, Math.min(limit, MAX_RTO)));
+        if (control != null) {
+            control.set_data_timeout(rto);
+        }
+    }
+
+    /**
+     * Checks if a timer expiry came while the frame may still be in flight;
+     * the first expiries also give the duration of the data timer
+     *
+     * @param seq sequence number of the Data frame
+     * @param time current simulation time
+     * @return true if the frame is outstanding and was sent less than one RTO
+     * and, after the first sample, less than 5/4 of the smoothed RTT ago;
+     * always false when the data timers follow the RTO
+     */
+    public boolean is_premature(int seq, long time) {
+        if (!outstanding[seq] || control != null) {
+            return false;   // o timer ja durou o RTO
+        }
+        long elapsed = time - sent_time[seq];
+        if (timer == 0 || elapsed < timer) {
+            timer = elapsed;    // o timer comeca no fim da transmissao
+        }
+        if (rto == 0) {
+            rto = timer;    // antes da primeira amostra
+        }
+        return elapsed < rto && (!has_sample || elapsed < srtt + srtt / 4);   // 1/4 de margem
+    }
+
+    /**
+     * @return current retransmission timeout
+     */
+    public long rto() {
+        return rto;
+    }
+
+    /**
+     * @return duration of the data timer, or 0 before it first expired; the
+     * initial duration when the data timers follow the RTO
+     */
+    public long timer() {
+        return timer;
+    }
+
+    /**
+     * @return smoothed round trip time, or 0 before the first sample
+     */
+    public long srtt() {
+        return (long) srtt;
+    }
+
+    /**
+     * Updates srtt, rttvar and rto with a new round trip time sample (RFC 6298);
+     * the backoff is reset
+     *
+     * @param rtt round trip time measured
+     */
+    private void sample(long rtt) {
+        if (!has_sample) {
+            srtt = rtt;
+            rttvar = rtt / 2.0;
+            has_sample = true;
+        } else {
+            rttvar = (1 - BETA) * rttvar + BETA * Math.abs(srtt - rtt);
+            srtt = (1 - ALPHA) * srtt + ALPHA * rtt;
+        }
+        double estimate = srtt + 4 * rttvar;
+        if (control != null) {
+            // 1/4 de margem (sem variacao o rttvar tende para 0), e acima do
+            // timer configurado so se o srtt o pedir
+            estimate = Math.min(Math.max(estimate, srtt + srtt / 4), Math.max(timer, srtt + srtt / 4));
+        }
+        sampled_rto = Math.min(Math.max((long) Math.ceil(estimate), MIN_RTO), MAX_RTO);
+        rto = sampled_rto;
+        if (control != null) {
+            control.set_data_timeout(rto);
+        }
+    }
+
+    /* Variables */
+    /**
+     * Gains of the srtt and rttvar filters
+     */
+    private static final double ALPHA = 1.0 / 8, BETA = 1.0 / 4;
+    /**
+     * Limits of the retransmission timeout
+     */
+    private static final long MIN_RTO = 1, MAX_RTO = 60000;
+    /**
+     * Time when each outstanding frame ended its last transmission
+     */
+    private final long[] sent_time;
+    /**
+     * Frames sent more than once since the last acknowledgement
+     */
+    private final boolean[] retransmitted;
+    /**
+     * Frames sent and not yet acknowledged
+     */
+    private final boolean[] outstanding;
+    /**
+     * Smoothed round trip time and its mean deviation
+     */
+    private double srtt, rttvar;
+    /**
+     * Current retransmission timeout, and the one given by the last sample,
+     * before backoff
+     */
+    private long rto, sampled_rto;
+    /**
+     * Duration of the data timer, 0 until it is known
+     */
+    private long timer;
+    /**
+     * True after the first round trip time sample
+     */
+    private boolean has_sample;
+    /**
+     * Simulator whose data timers follow the RTO, or null if their duration
+     * is fixed
+     */
+    private Timeout_Control control;
+}
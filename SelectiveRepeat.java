@@ -0,0 +1,392 @@
+/*
+ * Sistemas de Telecomunicacoes
+ *          2022/2023
+ */
+package protocol;
+
+import terminal.Simulator;
+import simulator.Frame;
+import terminal.NetworkLayer;
+
+/**
+ * Protocol 5 : Selective Repeat protocol
+ *
+ * @author 62633 (Put here your students' numbers)
+ */
+public class SelectiveRepeat extends Base_Protocol implements Callbacks {
+
+    public SelectiveRepeat(Simulator _sim, NetworkLayer _net) {
+        super(_sim, _net);      // Calls the constructor of Base_Protocol
+
+        // com uma janela maior que metade do espaco de numeracao o recetor
+        // nao distingue uma trama nova de uma retransmissao
+        window = Math.max(1, Math.min(sim.get_send_window(), (sim.get_max_sequence() + 1) / 2));
+        next_frame_to_send = 0;
+        ack_expected = 0;
+        frame_expected = 0;
+        too_far = add_seq(frame_expected, window);
+        send_head = 0;
+        recv_head = 0;
+        sending_buffer = new String[window];
+        resend_pending = new boolean[window];
+        receiving_buffer = new String[window];
+        arrived = new boolean[window];
+        nak_sent = false;
+        flow_control = true;
+        peer_window = window;   // ate o peer anunciar o seu espaco
+        window_controller = null;
+    }
+
+    /**
+     * Enables receiver-driven flow control: the sending window is limited to
+     * the receive buffer space advertised by the peer in the rcvbufsize field
+     * of its frames; with no space one frame is kept in flight, so its
+     * retransmissions probe the receiver until it advertises space again
+     *
+     * @param on true to limit the window to the advertised space
+     */
+    public void set_flow_control(boolean on) {
+        flow_control = on;
+    }
+
+    /**
+     * Enables the dynamic sending window: slow start and additive increase on
+     * ACKs, multiplicative decrease on NAKs and timeouts; the window never
+     * exceeds the simulator window
+     *
+     * @param controller window controller, or null for a fixed window
+     */
+    public void set_window_controller(Window_Controller controller) {
+        window_controller = controller;
+    }
+
+    /**
+     * @return sending window in use, after flow and congestion control
+     */
+    public int current_window() {
+        return send_window();
+    }
+
+    /**
+     * CALLBACK FUNCTION: handle the beginning of the simulation event
+     *
+     * @param time current simulation time
+     */
+    @Override
+    public void start_simulation(long time) {
+        sim.Log("\nSelective Repeat Protocol\n\n");
+        if (window < sim.get_send_window()) {
+            sim.Log("Send window limited to " + window + " (half the sequence space)\n");
+        }
+        send_next_data_packet();
+    }
+
+    /**
+     * Sends the next frame: pending retransmissions first, then a new packet
+     * from the network layer if the sending window is not full
+     */
+    private void send_next_data_packet() {
+        if (sim.is_sending_data()) {
+            // tenta outra vez no DATA_END; se o emissor esta ocupado com um
+            // ACK/NAK nao ha DATA_END, o ack timer serve para acordar
+            sim.start_ack_timer();
+            return;
+        }
+        // Retransmissoes pendentes (NAK ou timeout com o emissor ocupado)
+        for (int i = ack_expected; between(ack_expected, i, next_frame_to_send); i = next_seq(i)) {
+            if (resend_pending[send_slot(i)]) {
+                send_data_packet(i);
+                return;
+            }
+        }
+        if (between(ack_expected, next_frame_to_send, add_seq(ack_expected, send_window()))
+                && net.has_more_packets_to_send()) {
+            sending_buffer[send_slot(next_frame_to_send)] = net.from_network_layer();
+            int seq = next_frame_to_send;
+            next_frame_to_send = next_seq(next_frame_to_send);
+            send_data_packet(seq);
+        }
+    }
+
+    /**
+     * Transmits the data frame with sequence number seq stored in the sending
+     * buffer; if the transmitter is busy it is marked to be resent later
+     *
+     * @param seq sequence number of the Data frame
+     */
+    private void send_data_packet(int seq) {
+        if (sim.is_sending_data()) {
+            resend_pending[send_slot(seq)] = true;
+            return;
+        }
+        resend_pending[send_slot(seq)] = false;
+        sim.cancel_ack_timer();     // o ack segue em piggybacking
+        Frame frame = Frame.new_Data_Frame(seq,
+                prev_seq(frame_expected) /* ack */,
+                net.get_recvbuffsize() /* returns the buffer space available in the network layer */,
+                sending_buffer[send_slot(seq)]);
+        sim.to_physical_layer(frame, false /* do not interrupt an ongoing transmission*/);
+    }
+
+    /**
+     * CALLBACK FUNCTION: handle the end of Data frame transmission, start timer
+     * and send the next frame until reaching the end of the sending window.
+     *
+     * @param time current simulation time
+     * @param seq sequence number of the Data frame transmitted
+     */
+    @Override
+    public void handle_Data_end(long time, int seq) {
+        if (between(ack_expected, seq, next_frame_to_send)) {
+            sim.start_data_timer(seq);
+        }
+        send_next_data_packet();
+    }
+
+    /**
+     * CALLBACK FUNCTION: handle the timer event; retransmit only the frame
+     * that expired.
+     *
+     * @param time current simulation time
+     * @param key timer key (sequence number)
+     */
+    @Override
+    public void handle_Data_Timer(long time, int key) {
+        if (between(ack_expected, key, next_frame_to_send)) {
+            if (window_controller != null) {
+                window_controller.on_timeout();
+            }
+            if (sim.is_sending_data()) {
+                sim.start_data_timer(key);  // emissor ocupado - volta a tentar
+            }
+            send_data_packet(key);
+        }
+    }
+
+    /**
+     * CALLBACK FUNCTION: handle the ack timer event; send ACK frame
+     *
+     * @param time current simulation time
+     */
+    @Override
+    public void handle_ack_Timer(long time) {
+        if (sim.is_sending_data()) {
+            sim.start_ack_timer();  // volta a tentar
+            return;
+        }
+        send_next_data_packet();    // se houver dados o ack segue em piggybacking
+        if (!sim.is_sending_data()) {
+            Frame ack_frame = Frame.new_Ack_Frame(prev_seq(frame_expected), net.get_recvbuffsize());
+            sim.to_physical_layer(ack_frame, false /* do not interrupt an ongoing transmission*/);
+        }
+    }
+
+    /**
+     * CALLBACK FUNCTION: handle the reception of a frame from the physical
+     * layer
+     *
+     * @param time current simulation time
+     * @param frame frame received
+     */
+    @Override
+    public void from_physical_layer(long time, Frame frame) {
+
+        update_peer_window(frame.rcvbufsize());
+        if (frame.kind() == Frame.DATA_FRAME) {
+            if (frame.seq() != frame_expected && between(frame_expected, frame.seq(), too_far)
+                    && !nak_sent && !sim.is_sending_data()) {
+                // falta o frame_expected - pede so esse (um duplicado antigo nao indica perda)
+                nak_sent = true;
+                sim.cancel_ack_timer();
+                sim.to_physical_layer(Frame.new_Nak_Frame(frame_expected, net.get_recvbuffsize()),
+                        false /* do not interrupt an ongoing transmission*/);
+            }
+            if (between(frame_expected, frame.seq(), too_far) && !arrived[recv_slot(frame.seq())]) {
+                arrived[recv_slot(frame.seq())] = true;
+                receiving_buffer[recv_slot(frame.seq())] = frame.info();
+                // Entrega por ordem tudo o que ja esta no buffer
+                while (arrived[recv_head]) {
+                    if (!net.to_network_layer(receiving_buffer[recv_head])) {
+                        break;      // nivel de rede cheio, fica no buffer
+                    }
+                    arrived[recv_head] = false;
+                    receiving_buffer[recv_head] = null;
+                    recv_head = (recv_head + 1) % window;
+                    nak_sent = false;
+                    frame_expected = next_seq(frame_expected);
+                    too_far = next_seq(too_far);
+                }
+            }
+            sim.start_ack_timer();
+            handle_ack(frame.ack());
+        }
+
+        if (frame.kind() == Frame.ACK_FRAME) {
+            handle_ack(frame.ack());
+        }
+
+        if (frame.kind() == Frame.NAK_FRAME) {
+            if (window_controller != null) {
+                window_controller.on_loss();
+            }
+            handle_ack(prev_seq(frame.nak()));  // o NAK confirma tudo antes de nak
+            if (between(ack_expected, frame.nak(), next_frame_to_send)) {
+                send_data_packet(frame.nak());  // reenvia so a trama pedida - o timer reinicia no DATA_END
+            }
+        }
+        send_next_data_packet();    // o emissor pode ter ficado livre
+    }
+
+    /**
+     * Processes a cumulative acknowledgement, releasing the confirmed frames
+     * and sliding the sending window
+     *
+     * @param ack sequence number of the last frame acknowledged
+     */
+    private void handle_ack(int ack) {
+        if (!between(ack_expected, ack, next_frame_to_send)) {
+            return;     // ack antigo ou fora da janela
+        }
+        int acked = 0;
+        for (; ack_expected != next_seq(ack); ack_expected = next_seq(ack_expected)) {
+            sim.cancel_data_timer(ack_expected);
+            sending_buffer[send_head] = null;
+            resend_pending[send_head] = false;
+            send_head = (send_head + 1) % window;
+            acked++;
+        }
+        if (window_controller != null) {
+            window_controller.on_ack(acked);
+        }
+        send_next_data_packet();
+    }
+
+    /**
+     * @return sending window in use: the configured window, limited by the
+     * space advertised by the peer when flow control is on and by the window
+     * controller
+     */
+    private int send_window() {
+        int w = flow_control ? Math.max(1, Math.min(window, peer_window)) : window;
+        return window_controller != null ? Math.min(w, window_controller.window()) : w;
+    }
+
+    /**
+     * Records the receive buffer space advertised in a frame of the peer
+     *
+     * @param rcvbufsize rcvbufsize field of the frame
+     * @return true if the window grew and more frames may be sent
+     */
+    private boolean update_peer_window(int rcvbufsize) {
+        int before = send_window();
+        peer_window = rcvbufsize;
+        return send_window() > before;
+    }
+
+    /**
+     * Number of sequence numbers from a up to b, in the circular sequence space
+     */
+    private int distance(int a, int b) {
+        return (b - a + sim.get_max_sequence() + 1) % (sim.get_max_sequence() + 1);
+    }
+
+    /**
+     * Slot of the sending buffer holding frame seq (the head holds ack_expected)
+     */
+    private int send_slot(int seq) {
+        return (send_head + distance(ack_expected, seq)) % window;
+    }
+
+    /**
+     * Slot of the receiving buffer holding frame seq (the head holds
+     * frame_expected)
+     */
+    private int recv_slot(int seq) {
+        return (recv_head + distance(frame_expected, seq)) % window;
+    }
+
+    /**
+     * CALLBACK FUNCTION: handle the end of the simulation
+     *
+     * @param time current simulation time
+     */
+    @Override
+    public void end_simulation(long time) {
+        if (window_controller != null) {
+            sim.Log("Congestion control: " + window_controller + "\n");
+        }
+        sim.Log("Stopping simulation\n");
+    }
+
+    /* Variables */
+    /**
+     * Reference to the simulator (Terminal), to get the configuration and send
+     * commands
+     */
+    //final Simulator sim;  -  Inherited from Base_Protocol
+    /**
+     * Reference to the network layer, to send a receive packets
+     */
+    //final NetworkLayer net;    -  Inherited from Base_Protocol
+    /**
+     * Size of the sending and receiving windows: the simulator window, up to
+     * half the sequence space
+     */
+    private final int window;
+    /**
+     * Sequence number of the next data frame
+     */
+    private int next_frame_to_send;
+    /**
+     * Expected sequence number of the next ack received
+     */
+    private int ack_expected;
+    /**
+     * Sending buffer, one slot per frame in the sending window
+     */
+    private final String[] sending_buffer;
+    /**
+     * Slot of the sending buffer holding frame ack_expected
+     */
+    private int send_head;
+    /**
+     * Frames waiting to be retransmitted because the transmitter was busy
+     */
+    private final boolean[] resend_pending;
+    /**
+     * Expected sequence number of the next data frame received
+     */
+    private int frame_expected;
+    /**
+     * Upper edge of the receiving window (first sequence number not accepted)
+     */
+    private int too_far;
+    /**
+     * Receiving buffer for frames received out of order
+     */
+    private final String[] receiving_buffer;
+    /**
+     * Slots of the receiving buffer that hold a frame
+     */
+    private final boolean[] arrived;
+    /**
+     * Slot of the receiving buffer holding frame frame_expected
+     */
+    private int recv_head;
+    /**
+     * State of nak - if has been sent (true) false otherwise
+     */
+    private boolean nak_sent;
+    /**
+     * Limit the sending window to the receive space advertised by the peer
+     */
+    private boolean flow_control;
+    /**
+     * Receive buffer space last advertised by the peer
+     */
+    private int peer_window;
+    /**
+     * Dynamic sending window, null for a fixed window
+     */
+    private Window_Controller window_controller;
+}
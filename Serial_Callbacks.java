@@ -0,0 +1,440 @@
+/*
+ * Sistemas de Telecomunicacoes
+ *          2022/2023
+ */
+package protocol;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import simulator.Frame;
+import terminal.NetworkLayer;
+import terminal.Simulator;
+
+/**
+ * Concurrency-safe mode for the protocols: the callbacks may be called from
+ * several threads (e.g. from_physical_layer from a receive thread and the
+ * timers from a timer thread), and are run one at a time, in the order they
+ * were queued, so the protocol keeps its single-threaded state unchanged.
+ *
+ * Each call is added to a lock-free multi-producer queue. The thread that
+ * finds the protocol idle becomes the event loop and runs the queued calls
+ * until the queue is empty; the other threads return at once (single-writer
+ * handoff, without locks or a dedicated thread). Every call happens-before
+ * the calls run after it, so the protocol fields need no synchronization.
+ *
+ * A callback returns before it runs when another thread is running the
+ * protocol. When all the calling threads have returned, every call has run.
+ * The protocol calls the Simulator and the NetworkLayer from the thread
+ * running the loop, so these must accept calls from any thread, one at a
+ * time.
+ *
+ * Usage (stress test): java protocol.Serial_Callbacks [packets] [links] [raw]
+ */
+public class Serial_Callbacks extends Callbacks_Filter {
+
+    /**
+     * @param protocol protocol run one callback at a time
+     */
+    public Serial_Callbacks(Callbacks protocol) {
+        super(protocol);
+        queue = new ConcurrentLinkedQueue<>();
+        wip = new AtomicInteger();
+        handoffs = new LongAdder();
+    }
+
+    /**
+     * Returns a factory that builds the protocol of f in concurrency-safe mode
+     *
+     * @param f factory of the protocol
+     * @return factory of the serialized protocol
+     */
+    public static Protocol_Factory serial(Protocol_Factory f) {
+        return (sim, net) -> new Serial_Callbacks(f.create(sim, net));
+    }
+
+    @Override
+    public void start_simulation(long time) {
+        run(() -> protocol.start_simulation(time));
+    }
+
+    @Override
+    public void handle_Data_end(long time, int seq) {
+        run(() -> protocol.handle_Data_end(time, seq));
+    }
+
+    @Override
+    public void handle_Data_Timer(long time, int key) {
+        run(() -> protocol.handle_Data_Timer(time, key));
+    }
+
+    @Override
+    public void handle_ack_Timer(long time) {
+        run(() -> protocol.handle_ack_Timer(time));
+    }
+
+    @Override
+    public void from_physical_layer(long time, Frame frame) {
+        run(() -> protocol.from_physical_layer(time, frame));
+    }
+
+    @Override
+    public void end_simulation(long time) {
+        run(() -> protocol.end_simulation(time));
+    }
+
+    /**
+     * Queues a callback and runs the queue if no other thread is running it
+     */
+    private void run(Runnable call) {
+        queue.add(call);
+        if (wip.getAndIncrement() != 0) {
+            handoffs.increment();   // outra thread corre a chamada
+            return;
+        }
+        int missed = 1;
+        do {
+            for (int i = 0; i < missed; i++) {
+                Runnable r = queue.poll();
+                try {
+                    r.run();
+                } catch (RuntimeException e) {
+                    // o ciclo continua para as chamadas de outras threads
+                    Thread t = Thread.currentThread();
+                    t.getUncaughtExceptionHandler().uncaughtException(t, e);
+                }
+            }
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    /**
+     * @return callbacks run by a thread other than the caller
+     */
+    public long handoffs() {
+        return handoffs.sum();
+    }
+
+    /**
+     * Link driven by two threads for the stress test: a receive thread that
+     * ends the transmissions and returns the ACKs, and a timer thread that
+     * fires the timers. The state shared with the protocol is atomic, since
+     * the protocol runs on either thread.
+     */
+    private static class Stress_Link implements Simulator, NetworkLayer {
+
+        Stress_Link(int max_sequence, int send_window, int packets) {
+            this.max_sequence = max_sequence;
+            this.send_window = send_window;
+            this.packets = packets;
+            data_timers = new AtomicIntegerArray(max_sequence + 1);
+            ack_timer = new AtomicBoolean();
+            in_protocol = new AtomicBoolean();
+            wire = new ConcurrentLinkedQueue<>();
+            ack_frames = new Frame[max_sequence + 1];
+            for (int i = 0; i <= max_sequence; i++) {
+                ack_frames[i] = Frame.new_Ack_Frame(i, send_window);
+            }
+        }
+
+        /* Simulator */
+        @Override
+        public void Log(String s) {
+            // descartado
+        }
+
+        @Override
+        public int get_max_sequence() {
+            return max_sequence;
+        }
+
+        @Override
+        public int get_send_window() {
+            return send_window;
+        }
+
+        @Override
+        public boolean is_sending_data() {
+            return sending;
+        }
+
+        @Override
+        public boolean to_physical_layer(Frame frame, boolean interrupt) {
+            if (sending && !interrupt) {
+                return false;
+            }
+            if (frame.kind() == Frame.DATA_FRAME) {
+                sending = true;
+                wire.add(frame);
+            }
+            return true;
+        }
+
+        @Override
+        public void start_data_timer(int key) {
+            data_timers.set(key, 1);
+        }
+
+        @Override
+        public void cancel_data_timer(int key) {
+            data_timers.set(key, 0);
+        }
+
+        @Override
+        public boolean isactive_data_timer(int key) {
+            return data_timers.get(key) != 0;
+        }
+
+        @Override
+        public void start_ack_timer() {
+            ack_timer.set(true);
+        }
+
+        @Override
+        public void cancel_ack_timer() {
+            ack_timer.set(false);
+        }
+
+        @Override
+        public void stop() {
+            stopped = true;     // as threads do link terminam
+        }
+
+        /* NetworkLayer */
+        @Override
+        public String from_network_layer() {
+            return generated < packets ? generated++ + ":" : null;
+        }
+
+        @Override
+        public boolean has_more_packets_to_send() {
+            return generated < packets;
+        }
+
+        @Override
+        public int get_recvbuffsize() {
+            return send_window;
+        }
+
+        @Override
+        public boolean to_network_layer(String p) {
+            return true;
+        }
+
+        /**
+         * Receive thread: ends the transmission of each frame and acknowledges
+         * the frames received in order, checking their payload
+         */
+        void receive(Callbacks p, double loss, long seed) {
+            Random rnd = new Random(seed);
+            while (delivered < packets && !stopped) {
+                Frame f = wire.poll();
+                if (f == null) {
+                    Thread.onSpinWait();
+                    continue;
+                }
+                sending = false;
+                last_rx = System.nanoTime();
+                p.handle_Data_end(time(), f.seq());
+                if (rnd.nextDouble() < loss || f.seq() != expected_seq) {
+                    continue;   // perdida ou fora de ordem
+                }
+                if (!f.info().equals(delivered + ":")) {
+                    errors.incrementAndGet();   // pacote trocado ou repetido
+                }
+                delivered++;
+                expected_seq = expected_seq == max_sequence ? 0 : expected_seq + 1;
+                p.from_physical_layer(time(), ack_frames[f.seq()]);
+            }
+        }
+
+        /**
+         * Timer thread: fires the data timer of the frame expected by the
+         * receiver (or the oldest one) when the wire was empty for
+         * TIMER_NS, and the ack timer
+         */
+        void fire_timers(Callbacks p) {
+            while (delivered < packets && !stopped) {
+                if (!wire.isEmpty() || System.nanoTime() - last_rx < TIMER_NS) {
+                    Thread.onSpinWait();
+                    continue;
+                }
+                int key = expected_seq;
+                if (data_timers.get(key) == 0) {
+                    for (key = 0; key <= max_sequence && data_timers.get(key) == 0; key++) {
+                        // procura o primeiro timer ativo
+                    }
+                }
+                if (key <= max_sequence && data_timers.compareAndSet(key, 1, 0)) {
+                    p.handle_Data_Timer(time(), key);
+                } else if (ack_timer.compareAndSet(true, false)) {
+                    p.handle_ack_Timer(time());
+                } else {
+                    Thread.onSpinWait();
+                }
+            }
+        }
+
+        private long time() {
+            return clock.incrementAndGet();
+        }
+
+        /**
+         * Filter that counts the callbacks entered while another one is
+         * running on the same protocol
+         */
+        Callbacks checked(Callbacks p) {
+            return new Callbacks_Filter(p) {
+                private void enter() {
+                    if (!in_protocol.compareAndSet(false, true)) {
+                        overlaps.incrementAndGet();
+                    }
+                }
+
+                private void leave() {
+                    in_protocol.set(false);
+                }
+
+                @Override
+                public void start_simulation(long time) {
+                    enter();
+                    protocol.start_simulation(time);
+                    leave();
+                }
+
+                @Override
+                public void handle_Data_end(long time, int seq) {
+                    enter();
+                    protocol.handle_Data_end(time, seq);
+                    leave();
+                }
+
+                @Override
+                public void handle_Data_Timer(long time, int key) {
+                    enter();
+                    protocol.handle_Data_Timer(time, key);
+                    leave();
+                }
+
+                @Override
+                public void handle_ack_Timer(long time) {
+                    enter();
+                    protocol.handle_ack_Timer(time);
+                    leave();
+                }
+
+                @Override
+                public void from_physical_layer(long time, Frame frame) {
+                    enter();
+                    protocol.from_physical_layer(time, frame);
+                    leave();
+                }
+            };
+        }
+
+        /* Variables */
+        final int max_sequence, send_window, packets;
+        final AtomicIntegerArray data_timers;
+        final AtomicBoolean ack_timer;
+        final AtomicBoolean in_protocol;
+        final ConcurrentLinkedQueue<Frame> wire;
+        final Frame[] ack_frames;
+        /**
+         * Set by the protocol, cleared by the receive thread
+         */
+        volatile boolean sending;
+        /**
+         * Set by the protocol to end the threads of the link
+         */
+        volatile boolean stopped;
+        /**
+         * Packets taken by the protocol; read and written by the protocol only
+         */
+        int generated;
+        /**
+         * Receiver state, written by the receive thread only
+         */
+        volatile int delivered;
+        int expected_seq;
+        /**
+         * Time (ns) of the last frame taken from the wire
+         */
+        volatile long last_rx;
+        static final long TIMER_NS = 20000;
+        static final AtomicInteger overlaps = new AtomicInteger();
+        static final AtomicInteger errors = new AtomicInteger();
+        static final AtomicLong clock = new AtomicLong();
+    }
+
+    /**
+     * Stress test: runs 1 to N links at once (N = number of cores by
+     * default), each with a receive thread and a timer thread calling the
+     * same protocol, and checks that no two callbacks overlap and that every
+     * packet is delivered once and in order. With "raw" the protocols are called directly, to
+     * show the races the serial mode prevents.
+     */
+    public static void main(String[] args) throws Exception {
+        int packets = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int max_links = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        boolean raw = args.length > 2 && args[2].equals("raw");
+        System.out.println("protocol   links  packets/s  overlaps  errors  handoffs");
+        for (String name : new String[]{"StopWait", "GoBackN"}) {
+            Protocol_Factory f = Local_Simulator.factory(name);
+            for (int links = 1; links <= max_links; links *= 2) {
+                Stress_Link.overlaps.set(0);
+                Stress_Link.errors.set(0);
+                Thread[] threads = new Thread[2 * links];
+                Serial_Callbacks[] serial = new Serial_Callbacks[links];
+                for (int i = 0; i < links; i++) {
+                    Stress_Link l = new Stress_Link(7, 4, packets);
+                    Callbacks p = l.checked(f.create(l, l));
+                    if (!raw) {
+                        serial[i] = new Serial_Callbacks(p);
+                        p = serial[i];
+                    }
+                    p.start_simulation(0);
+                    Callbacks c = p;
+                    long seed = SEED + i;
+                    threads[2 * i] = new Thread(() -> l.receive(c, 0.01, seed));
+                    threads[2 * i + 1] = new Thread(() -> l.fire_timers(c));
+                }
+                long t0 = System.nanoTime();
+                for (Thread t : threads) {
+                    t.setDaemon(true);  // sem o modo serie um protocolo pode bloquear
+                    t.start();
+                }
+                boolean stalled = false;
+                for (Thread t : threads) {
+                    t.join(TIMEOUT_MS);
+                    stalled |= t.isAlive();
+                }
+                long ns = System.nanoTime() - t0;
+                long handoffs = 0;
+                for (Serial_Callbacks s : serial) {
+                    handoffs += s == null ? 0 : s.handoffs();
+                }
+                System.out.printf("%-10s %5d %10.0f %9d %7d %9d%s%n", name, links,
+                        (double) packets * links * 1e9 / ns, Stress_Link.overlaps.get(),
+                        Stress_Link.errors.get(), handoffs, stalled ? "  STALLED" : "");
+                if (stalled) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /* Variables */
+    private static final long SEED = 12345;
+    private static final long TIMEOUT_MS = 60000;
+    /**
+     * Callbacks waiting to run, and number of callbacks queued and not yet
+     * run (the thread that raises it from 0 runs the loop)
+     */
+    private final ConcurrentLinkedQueue<Runnable> queue;
+    private final AtomicInteger wip;
+    private final LongAdder handoffs;
+}
@@ -0,0 +1,604 @@
+/*
+ * Sistemas de Telecomunicacoes
+ *          2022/2023
+ */
+package protocol;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import simulator.Frame;
+import terminal.NetworkLayer;
+import terminal.Simulator;
+
+/**
+ * Session multiplexer: runs many protocol instances (sessions) over one
+ * simulator, as a node that serves many logical links. Each session has its
+ * own sequence space, buffers and network layer; the sessions share the
+ * transmitter, the data timers and the ack timer of the simulator.
+ *
+ * Every frame of a session is sent as a data frame whose payload starts with
+ * the frame kind and the session id ("D<id>|" followed by the payload, "A<id>|"
+ * or "N<id>|"), so that ACK and NAK frames also end with a DATA_END. The NAK
+ * number travels in the ack field. Both ends must add the same sessions in
+ * the same order.
+ *
+ * Scheduling: each session sees a transmitter of its own, busy while its data
+ * frame waits or is being sent. The frames of the sessions wait in per
+ * session queues and, every time the transmitter becomes idle, the next
+ * session in round-robin order sends one frame, so a session with a large
+ * window does not take the link from the others.
+ *
+ * Timers: the data timer key of a session is mapped to id * (max_sequence + 1)
+ * + key, so the simulator must accept keys above max_sequence (see
+ * Local_Simulator). The ack timer is shared: when it expires, every session
+ * that started it gets handle_ack_Timer, so a session may get it up to one
+ * ack timeout earlier than requested.
+ *
+ * Usage: java protocol.Session_Mux protocol sessions [packets] [loss]
+ */
+public class Session_Mux implements Callbacks {
+
+    /**
+     * @param sim simulator shared by the sessions
+     */
+    public Session_Mux(Simulator sim) {
+        this.sim = sim;
+        keys = sim.get_max_sequence() + 1;
+        sessions = new ArrayList<>();
+        ready = new ArrayDeque<>();
+        sent = new ArrayDeque<>();
+        acks_pending = 0;
+        started = false;
+        now = 0;
+        dropped = 0;
+    }
+
+    /**
+     * Adds a session; it is started at once if the simulation is running
+     *
+     * @param f factory of the protocol of the session
+     * @param net network layer of the session
+     * @return session id, given in order from 0
+     */
+    public int add_session(Protocol_Factory f, NetworkLayer net) {
+        Session s = new Session(sessions.size(), net);
+        sessions.add(s);
+        s.protocol = f.create(s, s);
+        if (started) {
+            s.protocol.start_simulation(now);
+        }
+        return s.id;
+    }
+
+    /**
+     * @return number of sessions
+     */
+    public int sessions() {
+        return sessions.size();
+    }
+
+    /**
+     * @param id session id
+     * @return protocol instance of the session
+     */
+    public Callbacks protocol(int id) {
+        return sessions.get(id).protocol;
+    }
+
+    /**
+     * @param id session id
+     * @return frames sent by the session
+     */
+    public long frames_sent(int id) {
+        return sessions.get(id).frames_sent;
+    }
+
+    /**
+     * @param id session id
+     * @return packets delivered to the network layer of the session
+     */
+    public long packets_delivered(int id) {
+        return sessions.get(id).delivered;
+    }
+
+    /**
+     * @param id session id
+     * @return payload bytes delivered to the network layer of the session
+     */
+    public long bytes_delivered(int id) {
+        return sessions.get(id).bytes_delivered;
+    }
+
+    /**
+     * @param id session id
+     * @return time of the last packet delivered to the session
+     */
+    public long last_delivery(int id) {
+        return sessions.get(id).last_delivery;
+    }
+
+    /**
+     * @param id session id
+     * @return payload bit/s delivered to the session, from the start to its
+     * last packet
+     */
+    public double throughput(int id) {
+        Session s = sessions.get(id);
+        return s.last_delivery > 0 ? s.bytes_delivered * 8000.0 / s.last_delivery : 0;
+    }
+
+    /**
+     * @return payload bit/s delivered to all the sessions, from the start to
+     * the last packet
+     */
+    public double throughput() {
+        long bytes = 0, last = 0;
+        for (Session s : sessions) {
+            bytes += s.bytes_delivered;
+            last = Math.max(last, s.last_delivery);
+        }
+        return last > 0 ? bytes * 8000.0 / last : 0;
+    }
+
+    /**
+     * @return Jain's fairness index of the session throughputs, from 1/n
+     * (one session gets everything) to 1 (all equal)
+     */
+    public double fairness() {
+        double sum = 0, sum2 = 0;
+        for (int i = 0; i < sessions.size(); i++) {
+            double x = throughput(i);
+            sum += x;
+            sum2 += x * x;
+        }
+        return sum2 > 0 ? sum * sum / (sessions.size() * sum2) : 1;
+    }
+
+    /**
+     * @return frames received with an invalid header or for an unknown
+     * session, and dropped
+     */
+    public long dropped() {
+        return dropped;
+    }
+
+    /**
+     * @return text with the aggregate and extreme session throughputs
+     */
+    @Override
+    public String toString() {
+        double min = Double.MAX_VALUE, max = 0;
+        long delivered = 0;
+        for (int i = 0; i < sessions.size(); i++) {
+            min = Math.min(min, throughput(i));
+            max = Math.max(max, throughput(i));
+            delivered += sessions.get(i).delivered;
+        }
+        return String.format("Mux: %d sessions, %d packets delivered, %.0f bit/s "
+                + "(per session %.0f to %.0f bit/s, fairness %.3f), %d frames dropped",
+                sessions.size(), delivered, throughput(), sessions.isEmpty() ? 0 : min, max, fairness(), dropped);
+    }
+
+    /* Callbacks */
+    @Override
+    public void start_simulation(long time) {
+        now = time;
+        started = true;
+        for (Session s : sessions) {
+            s.protocol.start_simulation(time);
+        }
+    }
+
+    @Override
+    public void handle_Data_end(long time, int seq) {
+        now = time;
+        Session s = sent.poll();
+        if (s == null) {
+            sim.Log("Mux: unexpected DATA_END\n");
+            return;
+        }
+        if (s.data_sent.poll()) {
+            s.data_busy = false;
+            s.protocol.handle_Data_end(time, seq);
+        }
+        send_next();
+    }
+
+    @Override
+    public void handle_Data_Timer(long time, int key) {
+        now = time;
+        int id = key / keys;
+        if (id < sessions.size()) {
+            sessions.get(id).protocol.handle_Data_Timer(time, key % keys);
+        }
+    }
+
+    @Override
+    public void handle_ack_Timer(long time) {
+        now = time;
+        ArrayList<Session> expired = new ArrayList<>(acks_pending);
+        for (Session s : sessions) {
+            if (s.ack_pending) {
+                s.ack_pending = false;
+                expired.add(s);
+            }
+        }
+        acks_pending = 0;   // os protocolos podem voltar a iniciar o timer
+        for (Session s : expired) {
+            s.protocol.handle_ack_Timer(time);
+        }
+    }
+
+    @Override
+    public void from_physical_layer(long time, Frame frame) {
+        now = time;
+        String info = frame.kind() == Frame.DATA_FRAME ? frame.info() : null;
+        int bar = info == null ? -1 : info.indexOf('|');
+        int id = -1;
+        if (bar > 1) {
+            try {
+                id = Integer.parseInt(info.substring(1, bar));
+            } catch (NumberFormatException e) {
+                id = -1;
+            }
+        }
+        if (id < 0 || id >= sessions.size()) {
+            dropped++;  // cabecalho invalido ou sessao desconhecida
+            sim.Log("Mux: frame dropped - no session\n");
+            return;
+        }
+        Frame f;
+        switch (info.charAt(0)) {
+            case 'D':
+                f = Frame.new_Data_Frame(frame.seq(), frame.ack(), frame.rcvbufsize(), info.substring(bar + 1));
+                break;
+            case 'A':
+                f = Frame.new_Ack_Frame(frame.ack(), frame.rcvbufsize());
+                break;
+            case 'N':
+                f = Frame.new_Nak_Frame(frame.ack(), frame.rcvbufsize());
+                break;
+            default:
+                dropped++;
+                sim.Log("Mux: frame dropped - unknown kind\n");
+                return;
+        }
+        sessions.get(id).protocol.from_physical_layer(time, f);
+    }
+
+    @Override
+    public void end_simulation(long time) {
+        now = time;
+        for (Session s : sessions) {
+            s.protocol.end_simulation(time);
+        }
+        sim.Log(toString() + "\n");
+    }
+
+    /**
+     * Sends the next frame waiting, in round-robin order of the sessions, if
+     * the transmitter is idle
+     */
+    private void send_next() {
+        if (ready.isEmpty() || sim.is_sending_data()) {
+            return;
+        }
+        Session s = ready.poll();
+        Frame f = s.queue.poll();
+        if (!sim.to_physical_layer(f, false)) {
+            s.queue.addFirst(f);    // tenta de novo no proximo DATA_END
+            ready.addFirst(s);
+            return;
+        }
+        sent.add(s);
+        s.data_sent.add(f.info().charAt(0) == 'D');
+        s.frames_sent++;
+        if (!s.queue.isEmpty()) {
+            ready.add(s);   // volta para o fim da fila
+        }
+    }
+
+    /**
+     * Logical link: the Simulator and NetworkLayer seen by the protocol of one
+     * session
+     */
+    private class Session extends Simulator_Filter implements NetworkLayer {
+
+        Session(int id, NetworkLayer net) {
+            super(Session_Mux.this.sim);
+            this.id = id;
+            this.net = net;
+            queue = new ArrayDeque<>();
+            data_sent = new ArrayDeque<>();
+        }
+
+        /* Simulator */
+        @Override
+        public void Log(String s) {
+            sim.Log("[" + id + "] " + s);
+        }
+
+        @Override
+        public boolean is_sending_data() {
+            return data_busy;
+        }
+
+        @Override
+        public boolean to_physical_layer(Frame frame, boolean interrupt) {
+            Frame f;
+            switch (frame.kind()) {
+                case Frame.DATA_FRAME:
+                    if (data_busy) {
+                        return false;   // transmissor proprio ocupado
+                    }
+                    data_busy = true;
+                    f = Frame.new_Data_Frame(frame.seq(), frame.ack(), frame.rcvbufsize(), "D" + id + "|" + frame.info());
+                    break;
+                case Frame.ACK_FRAME:
+                    f = Frame.new_Data_Frame(0, frame.ack(), frame.rcvbufsize(), "A" + id + "|");
+                    break;
+                case Frame.NAK_FRAME:
+                    f = Frame.new_Data_Frame(0, frame.nak(), frame.rcvbufsize(), "N" + id + "|");
+                    break;
+                default:
+                    return false;
+            }
+            queue.add(f);
+            if (queue.size() == 1) {
+                ready.add(this);
+            }
+            send_next();
+            return true;
+        }
+
+        @Override
+        public void start_data_timer(int key) {
+            sim.start_data_timer(id * keys + key);
+        }
+
+        @Override
+        public void cancel_data_timer(int key) {
+            sim.cancel_data_timer(id * keys + key);
+        }
+
+        @Override
+        public boolean isactive_data_timer(int key) {
+            return sim.isactive_data_timer(id * keys + key);
+        }
+
+        /**
+         * Stops this session only; the simulator is stopped when every
+         * session stopped
+         */
+        @Override
+        public void stop() {
+            stopped = true;
+            for (Session s : sessions) {
+                if (!s.stopped) {
+                    return;
+                }
+            }
+            sim.stop();
+        }
+
+        /**
+         * The data timers of the sessions share the simulator, so a session
+         * cannot change their duration
+         */
+        @Override
+        public long data_timeout() {
+            return 0;
+        }
+
+        @Override
+        public void set_data_timeout(long timeout) {
+        }
+
+        @Override
+        public void start_ack_timer() {
+            if (!ack_pending) {
+                ack_pending = true;
+                if (acks_pending++ == 0) {
+                    sim.start_ack_timer();
+                }
+            }
+        }
+
+        @Override
+        public void cancel_ack_timer() {
+            if (ack_pending) {
+                ack_pending = false;
+                if (--acks_pending == 0) {
+                    sim.cancel_ack_timer();
+                }
+            }
+        }
+
+        /* NetworkLayer */
+        @Override
+        public String from_network_layer() {
+            return net.from_network_layer();
+        }
+
+        @Override
+        public boolean has_more_packets_to_send() {
+            return net.has_more_packets_to_send();
+        }
+
+        @Override
+        public int get_recvbuffsize() {
+            return net.get_recvbuffsize();
+        }
+
+        @Override
+        public boolean to_network_layer(String packet) {
+            if (!net.to_network_layer(packet)) {
+                return false;
+            }
+            delivered++;
+            bytes_delivered += packet.length();
+            last_delivery = now;
+            return true;
+        }
+
+        /* Variables */
+        final int id;
+        final NetworkLayer net;
+        Callbacks protocol;
+        /**
+         * Frames waiting for the transmitter, and kind of the frames being
+         * sent (true for data), in the order of their DATA_END
+         */
+        final ArrayDeque<Frame> queue;
+        final ArrayDeque<Boolean> data_sent;
+        /**
+         * A data frame of the session is waiting or being sent
+         */
+        boolean data_busy;
+        boolean ack_pending;
+        /**
+         * The protocol of the session called stop()
+         */
+        boolean stopped;
+        /**
+         * Counters
+         */
+        long frames_sent, delivered, bytes_delivered, last_delivery;
+    }
+
+    /**
+     * Network layer of a session in the local simulator: sends a number of
+     * packets and accepts the packets received
+     */
+    public static class Packet_Source implements NetworkLayer {
+
+        /**
+         * @param packets packets to send
+         * @param size packet size (bytes)
+         * @param recv_buffer receive buffer advertised (packets)
+         */
+        public Packet_Source(int packets, int size, int recv_buffer) {
+            this.packets = packets;
+            this.recv_buffer = recv_buffer;
+            StringBuilder sb = new StringBuilder(size);
+            for (int i = 0; i < size; i++) {
+                sb.append((char) ('a' + i % 26));
+            }
+            padding = sb.toString();
+        }
+
+        @Override
+        public String from_network_layer() {
+            if (generated >= packets) {
+                return null;
+            }
+            String id = generated++ + ":";
+            return id + padding.substring(Math.min(id.length(), padding.length()));
+        }
+
+        @Override
+        public boolean has_more_packets_to_send() {
+            return generated < packets;
+        }
+
+        @Override
+        public int get_recvbuffsize() {
+            return recv_buffer;
+        }
+
+        @Override
+        public boolean to_network_layer(String packet) {
+            int sep = packet.indexOf(':');
+            int id = sep > 0 ? Integer.parseInt(packet.substring(0, sep)) : -1;
+            if (id != delivered) {
+                out_of_order++;   // duplicado ou fora de ordem
+                return true;
+            }
+            delivered++;
+            return true;
+        }
+
+        /* Variables */
+        final int packets, recv_buffer;
+        final String padding;
+        int generated;
+        /**
+         * Packets delivered in order, and duplicated or out of order
+         */
+        public int delivered, out_of_order;
+    }
+
+    /**
+     * Runs a number of sessions of a protocol from side A to side B in the
+     * local simulator and prints the aggregate and per session throughput
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: java protocol.Session_Mux protocol sessions [packets] [loss]");
+            return;
+        }
+        Protocol_Factory f = Local_Simulator.factory(args[0]);
+        int n = Integer.parseInt(args[1]);
+        Local_Simulator.Config config = new Local_Simulator.Config();
+        int packets = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        config.loss = args.length > 3 ? Double.parseDouble(args[3]) : config.loss;
+        config.packets_a = 0;
+        config.run_to_end = true;   // as sessoes tem as suas camadas de rede
+        Session_Mux[] mux = new Session_Mux[2];
+        ArrayList<Packet_Source> sinks = new ArrayList<>();
+        Local_Simulator s = new Local_Simulator(config, (sim, net) -> {
+            mux[0] = new Session_Mux(sim);
+            for (int i = 0; i < n; i++) {
+                mux[0].add_session(f, new Packet_Source(packets, config.packet_size, config.recv_buffer));
+            }
+            return mux[0];
+        }, (sim, net) -> {
+            mux[1] = new Session_Mux(sim);
+            for (int i = 0; i < n; i++) {
+                Packet_Source p = new Packet_Source(0, config.packet_size, config.recv_buffer);
+                sinks.add(p);
+                mux[1].add_session(f, p);
+            }
+            return mux[1];
+        });
+        long end = s.run();
+        int complete = 0;
+        long first = Long.MAX_VALUE, last = 0;
+        for (int i = 0; i < n; i++) {
+            if (sinks.get(i).delivered == packets) {
+                complete++;
+            }
+            first = Math.min(first, mux[1].last_delivery(i));
+            last = Math.max(last, mux[1].last_delivery(i));
+        }
+        System.out.printf("%s, %d sessions x %d packets, loss %.2f: %d/%d sessions complete, "
+                + "first finished at %d ms, last at %d ms (run ended at %d ms)%n",
+                args[0], n, packets, config.loss, complete, n, first, last, end);
+        System.out.println(mux[1]);
+    }
+
+    /* Variables */
+    /**
+     * Simulator shared by the sessions, and data timer keys per session
+     * (max_sequence + 1)
+     */
+    private final Simulator sim;
+    private final int keys;
+    private final ArrayList<Session> sessions;
+    /**
+     * Sessions with frames waiting, in round-robin order, and sessions of the
+     * frames being sent, in the order of their DATA_END
+     */
+    private final ArrayDeque<Session> ready;
+    private final ArrayDeque<Session> sent;
+    /**
+     * Sessions waiting for the ack timer
+     */
+    private int acks_pending;
+    private boolean started;
+    /**
+     * Time of the last callback
+     */
+    private long now;
+    private long dropped;
+}
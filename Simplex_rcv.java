@@ -19,6 +19,27 @@ public class Simplex_rcv extends Base_Protocol implements Callbacks {
     public Simplex_rcv(Simulator _sim, NetworkLayer _net) {
         super(_sim, _net);      // Calls the constructor of Base_Protocol
         frame_expected = 0;
+        ack_policy = new Ack_Policy(Ack_Policy.IMMEDIATE);
+        unpacker = null;
+    }
+
+    /**
+     * Enables frame batching: the data frames carry several packets packed by
+     * a Packet_Batcher at the sender
+     *
+     * @param on true to unpack the data frames received
+     */
+    public void set_batching(boolean on) {
+        unpacker = on ? new Packet_Batcher() : null;
+    }
+
+    /**
+     * Selects the acknowledgement policy of the receiver
+     *
+     * @param policy policy used to acknowledge the data frames received
+     */
+    public void set_ack_policy(Ack_Policy policy) {
+        ack_policy = policy;
     }
 
     /**
@@ -44,15 +65,42 @@ public class Simplex_rcv extends Base_Protocol implements Callbacks {
         if (frame.kind() == Frame.DATA_FRAME) {     // Check the frame kind
             DataFrameIF dframe = frame;  // Auxiliary variable to access the Data frame fields.
 
-            Frame ack_frame = Frame.new_Ack_Frame(dframe.seq(), dframe.rcvbufsize()); //criar ACK frame
-            sim.to_physical_layer(ack_frame, false /* do not interrupt an ongoing transmission*/);
+            boolean in_order = dframe.seq() == frame_expected;
 
-            if (dframe.seq() == frame_expected) {    // Check the sequence number
+            if (in_order) {    // Check the sequence number
                 // Send the frame to the network layer
-                if (net.to_network_layer(dframe.info())) {
+                if (unpacker != null ? unpacker.deliver(net, dframe.info()) : net.to_network_layer(dframe.info())) {
                     frame_expected = next_seq(frame_expected);
                 }
             }
+
+            switch (ack_policy.on_data_frame(in_order)) {
+                case Ack_Policy.SEND_ACK:
+                    // confirma a ultima trama aceite: uma trama recusada nao e confirmada
+                    Frame ack_frame = Frame.new_Ack_Frame(prev_seq(frame_expected), net.get_recvbuffsize()); //criar ACK frame
+                    sim.to_physical_layer(ack_frame, false /* do not interrupt an ongoing transmission*/);
+                    ack_policy.on_ack_sent();
+                    break;
+                case Ack_Policy.START_TIMER:
+                    sim.start_ack_timer();
+                    break;
+                default:
+                    break;  // nao envia dados, logo nunca ha piggybacking
+            }
+        }
+    }
+
+    /**
+     * CALLBACK FUNCTION: handle the ack timer event; send ACK frame
+     *
+     * @param time current simulation time
+     */
+    @Override
+    public void handle_ack_Timer(long time) {
+        if (ack_policy.ack_on_timer()) {
+            Frame ack_frame = Frame.new_Ack_Frame(prev_seq(frame_expected), net.get_recvbuffsize()); //criar ACK frame
+            sim.to_physical_layer(ack_frame, false /* do not interrupt an ongoing transmission*/);
+            ack_policy.on_ack_sent();
         }
     }
 
@@ -81,5 +129,13 @@ public class Simplex_rcv extends Base_Protocol implements Callbacks {
      * Expected sequence number of the next data frame received
      */
     private int frame_expected;
+    /**
+     * Acknowledgement policy of the receiver
+     */
+    private Ack_Policy ack_policy;
+    /**
+     * Unpacks the data frames carrying packed packets, null if not used
+     */
+    private Packet_Batcher unpacker;
 
 }
@@ -20,7 +20,19 @@ public class Simplex_snd extends Base_Protocol implements Callbacks {
     public Simplex_snd(Simulator _sim, NetworkLayer _net) {
         super(_sim, _net);      // Calls the constructor of Base_Protocol
         next_frame_to_send = 0;
-        // ...
+        sending_buffer = new Window_Buffer(1, sim.get_max_sequence());
+        batcher = null;
+    }
+
+    /**
+     * Enables frame batching: several packets are packed in each data frame;
+     * the receiver must also use batching
+     *
+     * @param batcher batcher of this sender, or null to send one packet per
+     * frame
+     */
+    public void set_batching(Packet_Batcher batcher) {
+        this.batcher = batcher;
     }
 
     /**
@@ -37,7 +49,11 @@ public class Simplex_snd extends Base_Protocol implements Callbacks {
 
     public void send_next_data_packet(){
         
-        sending_buffer = net.from_network_layer(); // buscar o proximo pacote do nivel de rede e Guardar pacote num buffer
+        sending_buffer.release_until(next_frame_to_send); // o anterior ja foi confirmado
+        String packet = batcher != null ? batcher.next_frame(net) : net.from_network_layer(); // buscar o proximo pacote do nivel de rede e Guardar pacote num buffer
+        if (packet != null) {
+            sending_buffer.add(packet);
+        }
         send_data_packet();
     }
     
@@ -50,12 +66,12 @@ public class Simplex_snd extends Base_Protocol implements Callbacks {
         //   you must wait for the DATA_END event before transmitting another one
         //   otherwise the first packet is lost in the channel
         //sending_buffer = net.from_network_layer(); // Guardar pacote num buffer
-        if (sending_buffer != null) {
+        if (sending_buffer.contains(next_frame_to_send)) {
             // The ACK field of the DATA frame is always the sequence number before zero, because no packets will be received
             Frame frame = Frame.new_Data_Frame(next_frame_to_send /*seq*/,
                     prev_seq(0) /* ack= the one before 0 */,
                     net.get_recvbuffsize() /* returns the buffer space available in the network layer */,
-                    sending_buffer);
+                    sending_buffer.get(next_frame_to_send));
             sim.to_physical_layer(frame, false /* do not interrupt an ongoing transmission*/);
             //next_frame_to_send = next_seq(next_frame_to_send);
             // Transmission of next DATA frame occurs after DATA_END event is received
@@ -108,11 +124,12 @@ public class Simplex_snd extends Base_Protocol implements Callbacks {
 
         if (frame.kind() == Frame.ACK_FRAME) {
             AckFrameIF aframe = frame;  // Auxiliary variable to access the Ack frame fields.
-          
+            if (aframe.ack() == next_frame_to_send) { // um ack da trama anterior (recusada) nao confirma esta
                 sim.cancel_data_timer(next_frame_to_send);                
                 next_frame_to_send = next_seq( next_frame_to_send );
                 
                 send_next_data_packet();
+            }
         }
     }
 
@@ -143,7 +160,11 @@ public class Simplex_snd extends Base_Protocol implements Callbacks {
     private int next_frame_to_send;
 
     /**
-     * Sending buffer
+     * Sending buffer, holds the frame waiting for an ACK
+     */
+    private final Window_Buffer sending_buffer;
+    /**
+     * Packs several packets per data frame, null if not used
      */
-    private String sending_buffer;
+    private Packet_Batcher batcher;
 }
@@ -0,0 +1,129 @@
+/*
+ * Sistemas de Telecomunicacoes 
+ *          2022/2023
+ */
+package protocol;
+
+import simulator.DataFrameIF;
+import terminal.Simulator;
+import simulator.Frame;
+import terminal.NetworkLayer;
+
+/**
+ * Protocol 2b : Pipelined Simplex Receiver protocol, acknowledges
+ * cumulatively the frames received in order and does not transmit data
+ *
+ * @author 62633
+ */
+public class Simplex_window_rcv extends Base_Protocol implements Callbacks {
+
+    public Simplex_window_rcv(Simulator _sim, NetworkLayer _net) {
+        super(_sim, _net);      // Calls the constructor of Base_Protocol
+        frame_expected = 0;
+        ack_policy = new Ack_Policy(Ack_Policy.IMMEDIATE);
+    }
+
+    /**
+     * Selects the acknowledgement policy of the receiver
+     *
+     * @param policy policy used to acknowledge the data frames received
+     */
+    public void set_ack_policy(Ack_Policy policy) {
+        ack_policy = policy;
+    }
+
+    /**
+     * CALLBACK FUNCTION: handle the beginning of the simulation event
+     *
+     * @param time current simulation time
+     */
+    @Override
+    public void start_simulation(long time) {
+        sim.Log("\nPipelined Simplex Receiver Protocol\n\tOnly receive data!\n\n");
+        //waits for packets
+    }
+
+    /**
+     * CALLBACK FUNCTION: handle the reception of a frame from the physical
+     * layer
+     *
+     * @param time current simulation time
+     * @param frame frame received
+     */
+    @Override
+    public void from_physical_layer(long time, Frame frame) {
+        if (frame.kind() == Frame.DATA_FRAME) {     // Check the frame kind
+            DataFrameIF dframe = frame;  // Auxiliary variable to access the Data frame fields.
+
+            boolean in_order = dframe.seq() == frame_expected;
+            if (in_order) {    // Check the sequence number
+                // Send the frame to the network layer
+                if (net.to_network_layer(dframe.info())) {
+                    frame_expected = next_seq(frame_expected);
+                }
+            }   // fora de ordem e descartado - o emissor volta atras
+
+            switch (ack_policy.on_data_frame(in_order)) {
+                case Ack_Policy.SEND_ACK:
+                    send_ack_frame();
+                    break;
+                case Ack_Policy.START_TIMER:
+                    sim.start_ack_timer();
+                    break;
+                default:
+                    break;  // nao envia dados, logo nunca ha piggybacking
+            }
+        }
+    }
+
+    /**
+     * CALLBACK FUNCTION: handle the ack timer event; send ACK frame
+     *
+     * @param time current simulation time
+     */
+    @Override
+    public void handle_ack_Timer(long time) {
+        if (ack_policy.ack_on_timer()) {
+            send_ack_frame();
+        }
+    }
+
+    /**
+     * Sends a cumulative ACK frame for the last frame received in order
+     */
+    private void send_ack_frame() {
+        Frame ack_frame = Frame.new_Ack_Frame(prev_seq(frame_expected), net.get_recvbuffsize()); //criar ACK frame
+        sim.to_physical_layer(ack_frame, false /* do not interrupt an ongoing transmission*/);
+        ack_policy.on_ack_sent();
+    }
+
+    /**
+     * CALLBACK FUNCTION: handle the end of the simulation
+     *
+     * @param time current simulation time
+     */
+    @Override
+    public void end_simulation(long time) {
+        sim.Log("Stopping simulation\n");
+    }
+
+    /* Variables */
+    /**
+     * Reference to the simulator (Terminal), to get the configuration and send
+     * commands
+     */
+    //final Simulator sim;  -  Inherited from Base_Protocol
+    /**
+     * Reference to the network layer, to send a receive packets
+     */
+    //final NetworkLayer net;    -  Inherited from Base_Protocol
+    /**
+     * Expected sequence number of the next data frame received
+     */
+    private int frame_expected;
+    /**
+     * Acknowledgement policy of the receiver
+     */
+    private Ack_Policy ack_policy;
+
+}
@@ -0,0 +1,230 @@
+/*
+ * Sistemas de Telecomunicacoes 
+ *          2022/2023
+ */
+package protocol;
+
+import terminal.Simulator;
+import simulator.Frame;
+import terminal.NetworkLayer;
+
+/**
+ * Protocol 2b : Pipelined Simplex Sender protocol, keeps up to a window of
+ * frames in flight and does not receive data frames
+ *
+ * @author 62633
+ */
+public class Simplex_window_snd extends Base_Protocol implements Callbacks {
+
+    public Simplex_window_snd(Simulator _sim, NetworkLayer _net) {
+        super(_sim, _net);      // Calls the constructor of Base_Protocol
+        next_frame_to_send = 0;
+        ack_expected = 0;
+        sending_buffer = new Window_Buffer(sim.get_send_window(), sim.get_max_sequence());
+        timer_on = false;
+        timer_key = 0;
+        flow_control = true;
+        peer_window = sim.get_send_window();    // ate o recetor anunciar o seu espaco
+    }
+
+    /**
+     * Enables receiver-driven flow control: the sending window is limited to
+     * the receive buffer space advertised by the peer in the rcvbufsize field
+     * of its frames; with no space one frame is kept in flight, so its
+     * retransmissions probe the receiver until it advertises space again
+     *
+     * @param on true to limit the window to the advertised space
+     */
+    public void set_flow_control(boolean on) {
+        flow_control = on;
+    }
+
+    /**
+     * CALLBACK FUNCTION: handle the beginning of the simulation event
+     *
+     * @param time current simulation time
+     */
+    @Override
+    public void start_simulation(long time) {
+        sim.Log("\nPipelined Simplex Sender Protocol\n\tOnly send data!\n\n");
+        send_next_data_packet();
+    }
+
+    /**
+     * Sends the frame next_frame_to_send: a frame already in the buffer after
+     * a timeout, or a new packet from the network layer if the window is not
+     * full
+     */
+    private void send_next_data_packet() {
+        if (sim.is_sending_data()) {
+            return;     // o proximo segue no DATA_END
+        }
+        if (!sending_buffer.contains(next_frame_to_send)) {
+            if (sending_buffer.size() >= send_window() || !net.has_more_packets_to_send()) {
+                return;
+            }
+            sending_buffer.add(net.from_network_layer()); // fica com o numero next_frame_to_send
+        }
+        // The ACK field of the DATA frame is always the sequence number before zero, because no packets will be received
+        Frame frame = Frame.new_Data_Frame(next_frame_to_send /*seq*/,
+                prev_seq(0) /* ack= the one before 0 */,
+                net.get_recvbuffsize() /* returns the buffer space available in the network layer */,
+                sending_buffer.get(next_frame_to_send));
+        sim.to_physical_layer(frame, false /* do not interrupt an ongoing transmission*/);
+        next_frame_to_send = next_seq(next_frame_to_send);
+        // Transmission of next DATA frame occurs after DATA_END event is received
+    }
+
+    /**
+     * CALLBACK FUNCTION: handle the end of Data frame transmission, start the
+     * window timer and send the next frame
+     *
+     * @param time current simulation time
+     * @param seq sequence number of the Data frame transmitted
+     */
+    @Override
+    public void handle_Data_end(long time, int seq) {
+        if (!timer_on) {
+            start_timer();    // um so timer para a janela
+        }
+        send_next_data_packet();
+    }
+
+    /**
+     * CALLBACK FUNCTION: handle the data timer event; go back and retransmit
+     * the window
+     *
+     * @param time current simulation time
+     * @param key timer key (sequence number)
+     */
+    @Override
+    public void handle_Data_Timer(long time, int key) {
+        timer_on = false;
+        next_frame_to_send = ack_expected;
+        send_next_data_packet();
+    }
+
+    /**
+     * CALLBACK FUNCTION: handle the ack timer event; ignores it in this case
+     *
+     * @param time current simulation time
+     */
+    @Override
+    public void handle_ack_Timer(long time) {
+        //DO NOTHING
+    }
+
+    /**
+     * CALLBACK FUNCTION: handle the reception of a frame from the physical
+     * layer
+     *
+     * @param time current simulation time
+     * @param frame frame received
+     */
+    @Override
+    public void from_physical_layer(long time, Frame frame) {
+
+        boolean window_grew = update_peer_window(frame.rcvbufsize());
+
+        if (frame.kind() == Frame.ACK_FRAME
+                && between(ack_expected, frame.ack(), next_frame_to_send)) {   // ack cumulativo
+            ack_expected = next_seq(frame.ack());
+            sending_buffer.release_until(ack_expected);
+
+            if (timer_on) {
+                sim.cancel_data_timer(timer_key);
+                timer_on = false;
+            }
+            if (ack_expected != next_frame_to_send) {
+                start_timer();    // a janela avancou - reinicia o timer
+            }
+            send_next_data_packet();
+        } else if (window_grew) {
+            send_next_data_packet(); // o recetor voltou a ter espaco
+        }
+    }
+
+    /**
+     * Starts the window timer, keyed by the oldest frame not acknowledged
+     */
+    private void start_timer() {
+        timer_key = ack_expected;
+        sim.start_data_timer(timer_key);
+        timer_on = true;
+    }
+
+    /**
+     * @return sending window in use: the configured window, limited by the
+     * space advertised by the peer when flow control is on
+     */
+    private int send_window() {
+        return flow_control ? Math.max(1, Math.min(sim.get_send_window(), peer_window)) : sim.get_send_window();
+    }
+
+    /**
+     * Records the receive buffer space advertised in a frame of the peer
+     *
+     * @param rcvbufsize rcvbufsize field of the frame
+     * @return true if the window grew and more frames may be sent
+     */
+    private boolean update_peer_window(int rcvbufsize) {
+        int before = send_window();
+        peer_window = rcvbufsize;
+        return send_window() > before;
+    }
+
+    /**
+     * CALLBACK FUNCTION: handle the end of the simulation
+     *
+     * @param time current simulation time
+     */
+    @Override
+    public void end_simulation(long time) {
+        sim.Log("Stopping simulation\n");
+    }
+
+    /* Variables */
+    /**
+     * Reference to the simulator (Terminal), to get the configuration and send
+     * commands
+     */
+    //final Simulator sim;  -  Inherited from Base_Protocol
+    /**
+     * Reference to the network layer, to send a receive packets
+     */
+    //final NetworkLayer net;    -  Inherited from Base_Protocol
+    /**
+     * Sequence number of the next data frame
+     */
+    private int next_frame_to_send;
+
+    /**
+     * Expected sequence number of the next ack received
+     */
+    private int ack_expected;
+
+    /**
+     * Sending buffer, holds the frames from ack_expected to the end of the
+     * window
+     */
+    private final Window_Buffer sending_buffer;
+
+    /**
+     * State of the window timer
+     */
+    private boolean timer_on;
+
+    /**
+     * Key of the window timer (ack_expected when it was started)
+     */
+    private int timer_key;
+
+    /**
+     * Limit the sending window to the receive space advertised by the peer
+     */
+    private boolean flow_control;
+    /**
+     * Receive buffer space last advertised by the peer
+     */
+    private int peer_window;
+}
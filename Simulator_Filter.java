@@ -0,0 +1,97 @@
+/*
+ * Sistemas de Telecomunicacoes
+ *          2022/2023
+ */
+package protocol;
+
+import simulator.Frame;
+import terminal.Simulator;
+
+/**
+ * Simulator that forwards every call to another one. Layers placed between a
+ * protocol and the simulator extend it and override only the calls they
+ * observe or change. The duration of the data timers (Timeout_Control) is
+ * forwarded when the simulator below can change it.
+ */
+public class Simulator_Filter implements Simulator, Timeout_Control {
+
+    /**
+     * @param sim simulator that receives the calls
+     */
+    public Simulator_Filter(Simulator sim) {
+        this.sim = sim;
+    }
+
+    @Override
+    public void Log(String s) {
+        sim.Log(s);
+    }
+
+    @Override
+    public int get_max_sequence() {
+        return sim.get_max_sequence();
+    }
+
+    @Override
+    public int get_send_window() {
+        return sim.get_send_window();
+    }
+
+    @Override
+    public boolean is_sending_data() {
+        return sim.is_sending_data();
+    }
+
+    @Override
+    public boolean to_physical_layer(Frame frame, boolean interrupt) {
+        return sim.to_physical_layer(frame, interrupt);
+    }
+
+    @Override
+    public void start_data_timer(int key) {
+        sim.start_data_timer(key);
+    }
+
+    @Override
+    public void cancel_data_timer(int key) {
+        sim.cancel_data_timer(key);
+    }
+
+    @Override
+    public boolean isactive_data_timer(int key) {
+        return sim.isactive_data_timer(key);
+    }
+
+    @Override
+    public void start_ack_timer() {
+        sim.start_ack_timer();
+    }
+
+    @Override
+    public void cancel_ack_timer() {
+        sim.cancel_ack_timer();
+    }
+
+    @Override
+    public void stop() {
+        sim.stop();
+    }
+
+    /* Timeout_Control */
+    @Override
+    public long data_timeout() {
+        return sim instanceof Timeout_Control ? ((Timeout_Control) sim).data_timeout() : 0;
+    }
+
+    @Override
+    public void set_data_timeout(long timeout) {
+        if (sim instanceof Timeout_Control) {
+            ((Timeout_Control) sim).set_data_timeout(timeout);
+        }
+    }
+
+    /**
+     * Simulator below this layer
+     */
+    protected final Simulator sim;
+}
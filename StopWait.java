@@ -22,9 +22,47 @@ public class StopWait extends Base_Protocol implements Callbacks {
         super(_sim, _net);      // Calls the constructor of Base_Protocol
         frame_expected = 0;
         next_frame_to_send = 0;
+        sending_buffer = new Window_Buffer(1, sim.get_max_sequence());
+        rtt = null;
+        ack_policy = new Ack_Policy(Ack_Policy.DELAYED);
+        trace = null;
+        pending_seq = -1;
+        sending_data_frame = false;
 
     }
 
+    /**
+     * Selects the acknowledgement policy of the receiver
+     *
+     * @param policy policy used to acknowledge the data frames received
+     */
+    public void set_ack_policy(Ack_Policy policy) {
+        ack_policy = policy;
+    }
+
+    /**
+     * Sends the events of the protocol to a binary trace instead of the
+     * simulator log
+     *
+     * @param trace event trace, or null to write to the simulator log
+     */
+    public void set_trace(Event_Trace trace) {
+        this.trace = trace;
+    }
+
+    /**
+     * Enables the adaptive retransmission timeout: the data timers last the
+     * estimated RTO when the simulator can set their duration
+     * (Timeout_Control); otherwise a data timer that expires while the frame
+     * may still be in flight (see Rtt_Estimator) is restarted instead of
+     * retransmitting
+     *
+     * @param on true to estimate the round trip time from the ACKs received
+     */
+    public void set_adaptive_timeout(boolean on) {
+        rtt = on ? new Rtt_Estimator(sim.get_max_sequence(), sim) : null;
+    }
+
     /**
      * CALLBACK FUNCTION: handle the beginning of the simulation event
      *
@@ -33,69 +71,93 @@ public class StopWait extends Base_Protocol implements Callbacks {
     @Override
     public void start_simulation(long time) {
         sim.Log("\nStop&Wait Protocol\n\n");
-        send_next_data_packet();
+        send_next_data_packet(time);
         next_frame_to_send = next_seq(next_frame_to_send); // avança na seq
     }
     /**
      * CALLBACK FUNCTION: fetches a packet from the network layer and sends it
      *
-     * 
+     * @param time current simulation time
      */
-    public void send_next_data_packet() {
+    public void send_next_data_packet(long time) {
 
-        sending_buffer = net.from_network_layer(); // buscar o proximo pacote do nivel de rede e Guardar pacote num buffer
-        send_data_packet();
+        sending_buffer.release_until(next_frame_to_send); // o anterior ja foi confirmado
+        String packet = net.from_network_layer(); // buscar o proximo pacote do nivel de rede e Guardar pacote num buffer
+        if (packet != null) {
+            sending_buffer.add(packet);
+        }
+        send_data_packet(time);
     }
     /**
      * CALLBACK FUNCTION: Resends a data packet which was lost due to an error
      *
-     * 
+     * @param time current simulation time
      */
-    private void resend_data_packet() {
-      
-        if (sending_buffer != null && (!sim.is_sending_data())) {
-
-            sim.cancel_ack_timer();
-
-            // The ACK field of the DATA frame is always the sequence number before zero, because no packets will be received
-            int ack = prev_seq(frame_expected);  //ack do anterior ao proximo frame esperado = ack atual
-            Frame frame = Frame.new_Data_Frame(prev_seq(next_frame_to_send) /*seq*/,
-                    ack /* ack= the one before 0 */,
-                    net.get_recvbuffsize() /* returns the buffer space available in the network layer */,
-                    sending_buffer);
-
-            sim.to_physical_layer(frame, false /* do not interrupt an ongoing transmission*/);
-
+    private void resend_data_packet(long time) {
+        if (sending_buffer.contains(prev_seq(next_frame_to_send))) {
+            transmit(prev_seq(next_frame_to_send), time);
         } else {
-            sim.Log("Could not send a frame - resend\n");
-            return;
+            Event_Trace.log(trace, sim, time, Event_Trace.RESEND_FAILED, prev_seq(next_frame_to_send), -1);
         }
     }
     /**
      * CALLBACK FUNCTION: sends a data packet for the first time
      *
-     * 
+     * @param time current simulation time
      */
    
-    private void send_data_packet() {
-      
-        if (sending_buffer != null && (!sim.is_sending_data())) {
+    private void send_data_packet(long time) {
+        if (sending_buffer.contains(next_frame_to_send)) {
+            transmit(next_frame_to_send, time);
+        }
+        // sem pacote no buffer - o nivel de rede nao tem mais dados
+    }
 
-            sim.cancel_ack_timer();
+    /**
+     * Transmits the data frame seq; if the transmitter is busy the frame is
+     * kept pending and sent as soon as it is free (DATA_END of the frame on
+     * the wire, or the ack timer when it is an ACK frame), so a send
+     * opportunity is never lost
+     *
+     * @param seq sequence number of the Data frame, in the sending buffer
+     * @param time current simulation time
+     */
+    private void transmit(int seq, long time) {
+        if (sim.is_sending_data()) {
+            pending_seq = seq;
+            Event_Trace.record(trace, time, Event_Trace.SEND_DEFERRED, seq, -1);
+            if (!sending_data_frame) {
+                sim.start_ack_timer(); // um ACK nao gera DATA_END - o ack timer acorda
+            }
+            return;
+        }
+        pending_seq = -1;
+        sim.cancel_ack_timer();
+        ack_policy.on_ack_sent(); // o ack segue em piggybacking
 
-            // The ACK field of the DATA frame is always the sequence number before zero, because no packets will be received
-            int ack = prev_seq(frame_expected);  //ack do anterior ao proximo frame esperado = ack atual
-            Frame frame = Frame.new_Data_Frame(next_frame_to_send /*seq*/,
-                    ack /* ack= the one before 0 */,
-                    net.get_recvbuffsize() /* returns the buffer space available in the network layer */,
-                    sending_buffer);
+        int ack = prev_seq(frame_expected);  //ack do anterior ao proximo frame esperado = ack atual
+        Frame frame = Frame.new_Data_Frame(seq /*seq*/,
+                ack /* piggybacked ack */,
+                net.get_recvbuffsize() /* returns the buffer space available in the network layer */,
+                sending_buffer.get(seq));
 
-            sim.to_physical_layer(frame, false /* do not interrupt an ongoing transmission*/);
+        sending_data_frame = sim.to_physical_layer(frame, false /* do not interrupt an ongoing transmission*/);
+        // Transmission of next DATA frame occurs after DATA_END event is received
+    }
 
-            // Transmission of next DATA frame occurs after DATA_END event is received
-        } else {
-            sim.Log("Could not send a frame - send\n");
-            return;
+    /**
+     * Transmits the pending data frame, if there is one and it was not
+     * acknowledged meanwhile
+     *
+     * @param time current simulation time
+     */
+    private void send_pending(long time) {
+        if (pending_seq >= 0) {
+            if (sending_buffer.contains(pending_seq)) {
+                transmit(pending_seq, time);
+            } else {
+                pending_seq = -1;
+            }
         }
     }
 
@@ -107,7 +169,15 @@ public class StopWait extends Base_Protocol implements Callbacks {
      */
     @Override
     public void handle_Data_end(long time, int seq) {
-        sim.start_data_timer(seq);
+        sending_data_frame = false;
+        if (seq == prev_seq(next_frame_to_send) && sending_buffer.contains(seq)) {
+            if (rtt != null) {
+                rtt.on_sent(seq, time);
+            }
+            sim.start_data_timer(seq);
+        }
+        // confirmada durante a transmissao - sem timer
+        send_pending(time);
     }
 
     /**
@@ -118,7 +188,18 @@ public class StopWait extends Base_Protocol implements Callbacks {
      */
     @Override
     public void handle_Data_Timer(long time, int key) {
-        resend_data_packet(); //send same packet if timer runs 
+        if (key != prev_seq(next_frame_to_send) || !sending_buffer.contains(key)) {
+            return; // timer de uma trama ja confirmada
+        }
+        if (rtt != null) {
+            if (rtt.is_premature(key, time)) {
+                sim.start_data_timer(key); // ainda nao passou o RTO estimado
+                return;
+            }
+            rtt.on_timeout();
+        }
+        Event_Trace.record(trace, time, Event_Trace.DATA_TIMEOUT, key, -1);
+        resend_data_packet(time); //send same packet if timer runs 
     }
 
     /**
@@ -128,12 +209,31 @@ public class StopWait extends Base_Protocol implements Callbacks {
      */
     @Override
     public void handle_ack_Timer(long time) {
+        send_pending(time); // se houver dados o ack segue em piggybacking
+        if (pending_seq >= 0 || sending_data_frame) {
+            return;
+        }
+        if (ack_policy.ack_on_timer()) {
+            send_ack_frame(time);
+        }
+    }
+
+    /**
+     * Sends a standalone ACK frame acknowledging the last frame received
+     *
+     * @param time current simulation time
+     */
+    private void send_ack_frame(long time) {
 
         Frame ack_frame = Frame.new_Ack_Frame(prev_seq(frame_expected), net.get_recvbuffsize()); //criar ACK frame
         if (!sim.is_sending_data()) {
             sim.to_physical_layer(ack_frame, false /* do not interrupt an ongoing transmission*/); //envia um ack sem data se o timer expirar
+            ack_policy.on_ack_sent();
         } else {
-            sim.Log("Could not send aa ack\n");
+            Event_Trace.log(trace, sim, time, Event_Trace.ACK_SEND_FAILED, -1, prev_seq(frame_expected));
+            if (!sending_data_frame) {
+                sim.start_ack_timer(); // volta a tentar
+            }
         }
     }
 
@@ -155,19 +255,33 @@ public class StopWait extends Base_Protocol implements Callbacks {
             if (frame.ack() == prev_seq(next_frame_to_send)) {
 
                 sim.cancel_data_timer(prev_seq(next_frame_to_send));
-                send_next_data_packet();
+                if (rtt != null) {
+                    rtt.on_acked(prev_seq(next_frame_to_send), time);
+                }
+                Event_Trace.record(trace, time, Event_Trace.ACK_RECEIVED, -1, frame.ack());
+                send_next_data_packet(time);
                 next_frame_to_send = next_seq(next_frame_to_send); // avança na seq
             }
 
-            if (frame.seq() == frame_expected) {    // Check the sequence number
+            boolean in_order = frame.seq() == frame_expected;
+            if (in_order) {    // Check the sequence number
                 // Send the frame to the network layer
 
                 if (net.to_network_layer(frame.info())) { //se for bem recebido
                     frame_expected = next_seq(frame_expected); //avança na seq
                 }
             }
-            
-             sim.start_ack_timer();
+
+            switch (ack_policy.on_data_frame(in_order)) {
+                case Ack_Policy.SEND_ACK:
+                    send_ack_frame(time);
+                    break;
+                case Ack_Policy.START_TIMER:
+                    sim.start_ack_timer();
+                    break;
+                default:
+                    break;  // so em piggybacking
+            }
         }
         //TREATAMENTO DE ACK 
         if (frame.kind() == Frame.ACK_FRAME) { //check if its a ack frame
@@ -175,7 +289,11 @@ public class StopWait extends Base_Protocol implements Callbacks {
             if (frame.ack() == prev_seq(next_frame_to_send)) { //envio de data(somente) após ack  if (aframe.ack() == prev_seq(next_frame_to_send)) { //envio de data(somente) após ack
 
                 sim.cancel_data_timer(prev_seq(next_frame_to_send));
-                send_next_data_packet();
+                if (rtt != null) {
+                    rtt.on_acked(prev_seq(next_frame_to_send), time);
+                }
+                Event_Trace.record(trace, time, Event_Trace.ACK_RECEIVED, -1, frame.ack());
+                send_next_data_packet(time);
                 next_frame_to_send = next_seq(next_frame_to_send); // avança na seq
             }
         }
@@ -189,6 +307,9 @@ public class StopWait extends Base_Protocol implements Callbacks {
     @Override
     public void end_simulation(long time) {
         sim.Log("Stopping simulation\n");
+        if (trace != null) {
+            trace.flush();
+        }
     }
 
     /* Variables */
@@ -206,11 +327,32 @@ public class StopWait extends Base_Protocol implements Callbacks {
      */
     private int next_frame_to_send;
     /**
-     * Sending buffer
+     * Sending buffer, holds the frame waiting for an ACK
      */
-    private String sending_buffer;
+    private final Window_Buffer sending_buffer;
     /**
      * Expected sequence number of the next data frame received
      */
     private int frame_expected;
+    /**
+     * Round trip time estimator, null when the adaptive timeout is disabled
+     */
+    private Rtt_Estimator rtt;
+    /**
+     * Acknowledgement policy of the receiver
+     */
+    private Ack_Policy ack_policy;
+    /**
+     * Event trace, null to write the events to the simulator log
+     */
+    private Event_Trace trace;
+    /**
+     * Data frame waiting for the transmitter to be free, -1 if none
+     */
+    private int pending_seq;
+    /**
+     * True while one of our data frames is being transmitted (a DATA_END
+     * follows)
+     */
+    private boolean sending_data_frame;
 }
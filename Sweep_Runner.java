@@ -0,0 +1,144 @@
+/*
+ * Sistemas de Telecomunicacoes
+ *          2022/2023
+ */
+package protocol;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Parameter sweep over protocol, window size, loss probability and timeout.
+ *
+ * Every point runs in its own Local_Simulator, with its own seed, so the
+ * points are independent and are spread over the cores by a fork-join pool.
+ * The results are printed as one table: throughput, retransmissions and
+ * latency percentiles.
+ *
+ * Usage: java protocol.Sweep_Runner [packets per run] [threads]
+ */
+public class Sweep_Runner {
+
+    /**
+     * One point of the sweep and its results
+     */
+    public static class Point {
+
+        Point(String protocol, int window, double loss, long timeout, long seed) {
+            this.protocol = protocol;
+            this.window = window;
+            this.loss = loss;
+            this.timeout = timeout;
+            this.seed = seed;
+        }
+
+        public final String protocol;
+        public final int window;
+        public final double loss;
+        public final long timeout;
+        public final long seed;
+        /**
+         * Results: packets delivered per second of simulated time, data frames
+         * sent beyond one per packet, and latency percentiles (ms)
+         */
+        public double throughput;
+        public long retransmissions;
+        public int delivered;
+        public long p50, p95, p99;
+    }
+
+    /**
+     * Runs one point of the sweep with isolated simulator state
+     *
+     * @param p point to run; its results are filled in
+     * @param packets packets sent from side A to side B
+     */
+    public static void run(Point p, int packets) {
+        Local_Simulator.Config config = new Local_Simulator.Config();
+        config.send_window = p.window;
+        config.max_sequence = Math.max(1, 2 * p.window - 1);
+        config.loss = p.loss;
+        config.recv_buffer = Math.max(config.recv_buffer, p.window);   // o recetor nao limita a janela
+        config.data_timeout = p.timeout;
+        config.packets_a = packets;
+        config.packets_b = 0;
+        config.seed = p.seed;
+        try {
+            Protocol_Factory f = Local_Simulator.factory(p.protocol);
+            Local_Simulator sim = new Local_Simulator(config, f, f);
+            long end = sim.run();
+            Local_Simulator.Side rcv = sim.side_b();
+            p.delivered = rcv.delivered;
+            p.throughput = end > 0 ? rcv.delivered * 1000.0 / end : 0;
+            p.retransmissions = sim.side_a().data_frames_sent - sim.side_a().generated;
+            long[] lat = rcv.latencies();
+            Arrays.sort(lat);
+            p.p50 = percentile(lat, 0.50);
+            p.p95 = percentile(lat, 0.95);
+            p.p99 = percentile(lat, 0.99);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException("Unknown protocol " + p.protocol, e);
+        }
+    }
+
+    /**
+     * Runs all the points in parallel
+     *
+     * @param points points of the sweep
+     * @param packets packets per run
+     * @param threads number of worker threads
+     */
+    public static void run_all(List<Point> points, int packets, int threads) {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.submit(() -> points.parallelStream().forEach(p -> run(p, packets))).join();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static long percentile(long[] sorted, double q) {
+        if (sorted.length == 0) {
+            return -1;
+        }
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(q * sorted.length) - 1)];
+    }
+
+    public static void main(String[] args) {
+        int packets = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        String[] protocols = {"StopWait", "GoBackN"};
+        int[] windows = {1, 2, 4, 8, 16, 32, 64};
+        double[] losses = {0, 0.01, 0.02, 0.05, 0.1, 0.2};
+        long[] timeouts = {250, 500, 1000, 2000};
+
+        List<Point> points = new ArrayList<>();
+        long seed = 1;
+        for (String protocol : protocols) {
+            for (int window : windows) {
+                if (protocol.equals("StopWait") && window > 1) {
+                    continue;   // janela de 1
+                }
+                for (double loss : losses) {
+                    for (long timeout : timeouts) {
+                        points.add(new Point(protocol, window, loss, timeout, seed++));
+                    }
+                }
+            }
+        }
+
+        long t0 = System.nanoTime();
+        run_all(points, packets, threads);
+        long ms = (System.nanoTime() - t0) / 1000000;
+
+        System.out.println("protocol   window   loss  timeout  delivered  pkt/s     retrans   p50    p95    p99");
+        for (Point p : points) {
+            System.out.printf("%-10s %6d %6.2f %8d %10d %8.2f %9d %6d %6d %6d%n",
+                    p.protocol, p.window, p.loss, p.timeout, p.delivered, p.throughput,
+                    p.retransmissions, p.p50, p.p95, p.p99);
+        }
+        System.out.println(points.size() + " runs in " + ms + " ms on " + threads + " threads");
+    }
+}
@@ -0,0 +1,28 @@
+/*
+ * Sistemas de Telecomunicacoes
+ *          2022/2023
+ */
+package protocol;
+
+/**
+ * Implemented by the simulators that run their own timers (Local_Simulator,
+ * Udp_Terminal) so a protocol can set the duration of the data timers, e.g.
+ * to the retransmission timeout of an Rtt_Estimator. The course simulator
+ * keeps a fixed duration and does not implement it.
+ */
+public interface Timeout_Control {
+
+    /**
+     * @return duration of the data timers started now, or 0 if it cannot be
+     * changed
+     */
+    long data_timeout();
+
+    /**
+     * Sets the duration of the data timers started from now on; the timers
+     * running keep their deadline
+     *
+     * @param timeout duration of the data timers
+     */
+    void set_data_timeout(long timeout);
+}
@@ -0,0 +1,379 @@
+/*
+ * Sistemas de Telecomunicacoes
+ *          2022/2023
+ */
+package protocol;
+
+import java.util.Arrays;
+
+/**
+ * Hashed timing wheel for timers identified by an integer key (e.g. the data
+ * timers by sequence number, plus one key for the ack timer).
+ *
+ * The wheel has a power of two number of slots of one tick each; a timer is
+ * kept in the slot of its deadline, in a doubly linked list stored in arrays
+ * indexed by key, so start, cancel and is_active are O(1) and no timer
+ * objects are allocated. A timer further away than one turn of the wheel
+ * stays in its slot until the turn of its deadline. The earliest deadline is
+ * cached, so a discrete-event simulator can ask for it after every event.
+ *
+ * Not thread safe: used by the event loop of one terminal or simulator side.
+ */
+public class Timing_Wheel {
+
+    /**
+     * Receives the timers that expire in advance()
+     */
+    public interface Expiry {
+
+        void expired(int key, long deadline);
+    }
+
+    /**
+     * @param keys number of timer keys, from 0 to keys - 1
+     * @param slots number of slots, rounded up to a power of two
+     * @param tick duration of a slot (time units of the deadlines)
+     * @param start current time
+     */
+    public Timing_Wheel(int keys, int slots, long tick, long start) {
+        if (keys < 1 || slots < 1 || tick < 1) {
+            throw new IllegalArgumentException("Invalid timing wheel " + keys + " keys, " + slots + " slots, tick " + tick);
+        }
+        int n = Integer.highestOneBit(slots);
+        if (n < slots) {
+            n <<= 1;
+        }
+        mask = n - 1;
+        this.tick = tick;
+        heads = new int[n];
+        Arrays.fill(heads, NONE);
+        deadline = new long[keys];
+        order = new long[keys];
+        next = new int[keys];
+        prev = new int[keys];
+        slot_of = new int[keys];
+        Arrays.fill(slot_of, NONE);
+        expired = new int[keys];
+        expired_order = new long[keys];
+        current = start / tick;
+        active = 0;
+        started = 0;
+        earliest = Long.MAX_VALUE;
+        earliest_valid = true;
+    }
+
+    /**
+     * @return number of timer keys
+     */
+    public int keys() {
+        return slot_of.length;
+    }
+
+    /**
+     * Grows the wheel to hold at least the given number of keys; the timers
+     * running are kept
+     *
+     * @param keys number of timer keys
+     */
+    public void ensure_keys(int keys) {
+        int old = slot_of.length;
+        if (keys <= old) {
+            return;
+        }
+        int n = Math.max(keys, 2 * old);
+        deadline = Arrays.copyOf(deadline, n);
+        order = Arrays.copyOf(order, n);
+        next = Arrays.copyOf(next, n);
+        prev = Arrays.copyOf(prev, n);
+        slot_of = Arrays.copyOf(slot_of, n);
+        Arrays.fill(slot_of, old, n, NONE);
+        // pode ser chamado por um callback de advance(): mantem os expirados
+        expired = Arrays.copyOf(expired, n);
+        expired_order = Arrays.copyOf(expired_order, n);
+    }
+
+    /**
+     * Starts a timer, or restarts it if it is running
+     *
+     * @param key timer key
+     * @param deadline expiry time
+     */
+    public void start(int key, long deadline) {
+        cancel(key);
+        long t = Math.max(deadline / tick, current);   // nunca num slot ja passado
+        int s = (int) t & mask;
+        this.deadline[key] = deadline;
+        order[key] = started++;
+        slot_of[key] = s;
+        prev[key] = NONE;
+        next[key] = heads[s];
+        if (heads[s] != NONE) {
+            prev[heads[s]] = key;
+        }
+        heads[s] = key;
+        active++;
+        if (earliest_valid && deadline < earliest) {
+            earliest = deadline;
+        }
+    }
+
+    /**
+     * Stops a timer; does nothing if it is not running
+     *
+     * @param key timer key
+     */
+    public void cancel(int key) {
+        int s = slot_of[key];
+        if (s == NONE) {
+            return;
+        }
+        if (prev[key] != NONE) {
+            next[prev[key]] = next[key];
+        } else {
+            heads[s] = next[key];
+        }
+        if (next[key] != NONE) {
+            prev[next[key]] = prev[key];
+        }
+        slot_of[key] = NONE;
+        active--;
+        if (active == 0) {
+            earliest = Long.MAX_VALUE;
+            earliest_valid = true;
+        } else if (deadline[key] == earliest) {
+            earliest_valid = false;     // recalculado em next_deadline()
+        }
+    }
+
+    /**
+     * @param key timer key
+     * @return true if the timer is running
+     */
+    public boolean is_active(int key) {
+        return slot_of[key] != NONE;
+    }
+
+    /**
+     * @param key timer key
+     * @return deadline of the timer, valid while it is running
+     */
+    public long deadline(int key) {
+        return deadline[key];
+    }
+
+    /**
+     * @return number of timers running
+     */
+    public int active() {
+        return active;
+    }
+
+    /**
+     * Expires the timers with deadline up to now, in deadline order (timers
+     * with the same deadline in the order they were started). Each timer is
+     * stopped just before its expiry.expired() call, which may start or cancel
+     * timers (and grow the keys): a timer due in this call that is cancelled
+     * or restarted by an earlier callback does not expire here, and a timer
+     * started with a deadline up to now expires in the next call.
+     *
+     * @param now current time
+     * @param expiry receives the expired timers
+     * @return number of timers expired
+     */
+    public int advance(long now, Expiry expiry) {
+        long end = now / tick;
+        int n = 0;
+        long first = current;
+        if (earliest_valid) {
+            // nada expira antes do primeiro deadline
+            first = earliest <= now ? Math.max(current, earliest / tick) : end + 1;
+        }
+        if (active > 0) {
+            // mais do que uma volta: basta percorrer cada slot uma vez
+            long last = Math.min(end, first + mask);
+            for (long t = first; t <= last; t++) {
+                for (int k = heads[(int) t & mask]; k != NONE; k = next[k]) {
+                    if (deadline[k] <= now) {
+                        expired[n++] = k;
+                    }
+                }
+            }
+        }
+        current = Math.max(current, end);
+        if (n == 0) {
+            return 0;
+        }
+        sort(n);
+        for (int i = 0; i < n; i++) {
+            expired_order[i] = order[expired[i]];
+        }
+        int fired = 0;
+        for (int i = 0; i < n; i++) {
+            int k = expired[i];
+            if (slot_of[k] == NONE || order[k] != expired_order[i]) {
+                continue;   // cancelado ou reiniciado por um callback anterior
+            }
+            cancel(k);
+            fired++;
+            expiry.expired(k, deadline[k]);
+        }
+        return fired;
+    }
+
+    /**
+     * Moves the wheel to now when no timer is due up to now, without looking
+     * at the slots in between; O(1) while the earliest deadline is cached. A
+     * discrete-event simulator calls it before each event, so the next
+     * search for the earliest deadline starts at the current time.
+     *
+     * @param now current time
+     * @return false if a timer is due up to now (call advance())
+     */
+    public boolean skip(long now) {
+        if (next_deadline() <= now) {
+            return false;
+        }
+        current = Math.max(current, now / tick);
+        return true;
+    }
+
+    /**
+     * Sorts the first n expired keys by deadline and start order (insertion
+     * sort: few timers expire in each call)
+     */
+    private void sort(int n) {
+        for (int i = 1; i < n; i++) {
+            int k = expired[i];
+            int j = i - 1;
+            while (j >= 0 && (deadline[expired[j]] > deadline[k]
+                    || deadline[expired[j]] == deadline[k] && order[expired[j]] > order[k])) {
+                expired[j + 1] = expired[j];
+                j--;
+            }
+            expired[j + 1] = k;
+        }
+    }
+
+    /**
+     * Returns the earliest deadline. It is cached; after the earliest timer
+     * is cancelled or expires, the slots from the current one are searched
+     * (at most one turn of the wheel, and no more slots than keys) and, if
+     * they hold no timer due, every key.
+     *
+     * @return earliest deadline, or Long.MAX_VALUE if no timer is running
+     */
+    public long next_deadline() {
+        if (!earliest_valid) {
+            earliest = find_earliest();
+            earliest_valid = true;
+        }
+        return earliest;
+    }
+
+    private long find_earliest() {
+        if (active == 0) {
+            return Long.MAX_VALUE;
+        }
+        // percorrer mais slots do que chaves custa mais do que ver as chaves
+        long last = current + Math.min(mask, slot_of.length);
+        for (long t = current; t <= last; t++) {
+            long min = Long.MAX_VALUE;
+            for (int k = heads[(int) t & mask]; k != NONE; k = next[k]) {
+                if (Math.max(deadline[k] / tick, current) <= t) {
+                    min = Math.min(min, deadline[k]);
+                }
+            }
+            if (min != Long.MAX_VALUE) {
+                return min;
+            }
+        }
+        long min = Long.MAX_VALUE;
+        for (int k = 0; k < slot_of.length; k++) {
+            if (slot_of[k] != NONE) {
+                min = Math.min(min, deadline[k]);
+            }
+        }
+        return min;
+    }
+
+    /**
+     * Check of the timers started and cancelled from inside the callbacks:
+     * four timers expire in one advance(); the first callback cancels the
+     * second timer, restarts the third one later, restarts the fourth one at
+     * the same time and grows the keys. Only the first timer may expire in
+     * that call, the fourth one in the next call and the third one at its
+     * new deadline.
+     */
+    public static void main(String[] args) {
+        Timing_Wheel w = new Timing_Wheel(4, 8, 1, 0);
+        StringBuilder fired = new StringBuilder();
+        Expiry expiry = (key, deadline) -> {
+            fired.append(' ').append(key).append('@').append(deadline);
+            if (key == 0) {
+                w.cancel(1);
+                w.start(2, 30);
+                w.start(3, 10);
+                w.ensure_keys(64);
+            }
+        };
+        for (int k = 0; k < 4; k++) {
+            w.start(k, 10);
+        }
+        String[] expected = {" 0@10", " 3@10", "", " 2@30"};
+        long[] now = {10, 10, 29, 30};
+        int failures = 0;
+        for (int i = 0; i < now.length; i++) {
+            fired.setLength(0);
+            int n = w.advance(now[i], expiry);
+            boolean ok = fired.toString().equals(expected[i]) && n == (expected[i].isEmpty() ? 0 : 1);
+            System.out.printf("advance(%d): %d expired:%s  %s%n", now[i], n, fired,
+                    ok ? "ok" : "FAILED, expected" + expected[i]);
+            failures += ok ? 0 : 1;
+        }
+        if (w.active() != 0 || w.next_deadline() != Long.MAX_VALUE) {
+            failures++;
+            System.out.println(w.active() + " timers left running");
+        }
+        if (failures > 0) {
+            throw new IllegalStateException(failures + " timing wheel checks failed");
+        }
+        System.out.println("All timing wheel checks passed");
+    }
+
+    /* Variables */
+    private static final int NONE = -1;
+    /**
+     * Number of slots - 1, and duration of a slot
+     */
+    private final int mask;
+    private final long tick;
+    /**
+     * First key of the list of each slot
+     */
+    private final int[] heads;
+    /**
+     * Per key: deadline, start order, list links and slot (NONE when stopped)
+     */
+    private long[] deadline;
+    private long[] order;
+    private int[] next;
+    private int[] prev;
+    private int[] slot_of;
+    /**
+     * Keys expired in advance(), and their start order when they were
+     * collected (a timer restarted since has a new one)
+     */
+    private int[] expired;
+    private long[] expired_order;
+    /**
+     * Tick of the last advance()
+     */
+    private long current;
+    private int active;
+    private long started;
+    /**
+     * Earliest deadline, valid when earliest_valid
+     */
+    private long earliest;
+    private boolean earliest_valid;
+}
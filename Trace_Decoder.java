@@ -0,0 +1,73 @@
+/*
+ * Sistemas de Telecomunicacoes
+ *          2022/2023
+ */
+package protocol;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+
+/**
+ * Offline decoder of the files written by Event_Trace: prints the records as
+ * text lines, like the simulator log, or as CSV.
+ *
+ * Usage: java protocol.Trace_Decoder trace_file [csv]
+ */
+public class Trace_Decoder {
+
+    /**
+     * Decodes a trace
+     *
+     * @param in trace file contents
+     * @param csv true to print CSV, false to print text lines
+     * @param ps where the records are printed
+     * @return number of records decoded
+     * @throws IOException if the stream cannot be read or is not a trace
+     */
+    public static long decode(InputStream in, boolean csv, PrintStream ps) throws IOException {
+        DataInputStream din = new DataInputStream(new BufferedInputStream(in, 1 << 16));
+        int magic = din.readInt();
+        short version = din.readShort();
+        if (magic != Event_Trace.MAGIC || version != Event_Trace.VERSION) {
+            throw new IOException("Not an event trace (version " + Event_Trace.VERSION + ")");
+        }
+        if (csv) {
+            ps.println("time,kind,seq,ack");
+        }
+        long count = 0;
+        while (true) {
+            long time;
+            try {
+                time = din.readLong();
+            } catch (EOFException e) {
+                return count;  // fim do ficheiro
+            }
+            int kind = din.readByte();
+            int seq = din.readInt();
+            int ack = din.readInt();
+            if (csv) {
+                ps.println(time + "," + Event_Trace.name(kind) + "," + seq + "," + ack);
+            } else {
+                ps.println(Event_Trace.format(time, kind, seq, ack));
+            }
+            count++;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: java protocol.Trace_Decoder trace_file [csv]");
+            return;
+        }
+        boolean csv = args.length > 1 && args[1].equalsIgnoreCase("csv");
+        try (InputStream in = new FileInputStream(args[0])) {
+            long n = decode(in, csv, System.out);
+            System.err.println(n + " records");
+        }
+    }
+}
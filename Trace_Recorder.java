@@ -0,0 +1,440 @@
+/*
+ * Sistemas de Telecomunicacoes
+ *          2022/2023
+ */
+package protocol;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import simulator.Frame;
+import terminal.NetworkLayer;
+import terminal.Simulator;
+
+/**
+ * Records everything a protocol instance sees during a run, so that the run
+ * can be reproduced by Trace_Replayer without the simulator.
+ *
+ * A layer placed around the protocol (see recording()) keeps, in call order:
+ * the configuration (max sequence and send window, recorded first), the
+ * callbacks with their time and frames (inputs), the answers of the Simulator
+ * and NetworkLayer to the protocol queries, and the commands given by the
+ * protocol (frames sent, timers started and cancelled, stop), which the
+ * replayer checks.
+ *
+ * Usage: recorder.recording(GoBackN::new) replaces the protocol factory of one
+ * side; save() writes the recording to a file.
+ */
+public class Trace_Recorder {
+
+    /**
+     * Entry types: callbacks
+     */
+    static final int START = 0, DATA_END = 1, DATA_TIMER = 2, ACK_TIMER = 3, FRAME = 4, END = 5;
+    /**
+     * Entry types: answers to queries
+     */
+    static final int MAX_SEQUENCE = 10, SEND_WINDOW = 11, IS_SENDING = 12, TIMER_ACTIVE = 13,
+            FROM_NETWORK = 14, HAS_MORE = 15, RECV_BUFFER = 16, TO_NETWORK = 17;
+    /**
+     * Entry types: commands
+     */
+    static final int TO_PHYSICAL = 20, START_DATA_TIMER = 21, CANCEL_DATA_TIMER = 22,
+            START_ACK_TIMER = 23, CANCEL_ACK_TIMER = 24, STOP = 25;
+
+    /**
+     * File header
+     */
+    static final int MAGIC = 0x50525452;   // "PRTR"
+    static final short VERSION = 1;
+
+    /**
+     * Entry of a recording: time of a callback, seq or timer key, answer of a
+     * query (1 for true) and frame received or sent
+     */
+    static final class Entry {
+
+        Entry(int type, long time, int key, int value, Frame frame) {
+            this.type = type;
+            this.time = time;
+            this.key = key;
+            this.value = value;
+            this.frame = frame;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(name(type));
+            if (is_callback(type)) {
+                sb.append(" time=").append(time);
+            }
+            sb.append(" key=").append(key).append(" value=").append(value);
+            if (frame != null) {
+                sb.append(' ').append(describe(frame));
+            }
+            return sb.toString();
+        }
+
+        final int type;
+        final long time;
+        final int key;
+        final int value;
+        final Frame frame;
+        /**
+         * Packet from the network layer, for FROM_NETWORK; also the packet
+         * delivered, for TO_NETWORK
+         */
+        String packet;
+    }
+
+    public Trace_Recorder() {
+        entries = new ArrayList<>();
+        created = false;
+    }
+
+    /**
+     * Returns a factory that builds the protocol of f with this recorder
+     * around it; only one protocol instance can be recorded
+     *
+     * @param f factory of the protocol to record
+     * @return factory of the recorded protocol
+     */
+    public Protocol_Factory recording(Protocol_Factory f) {
+        return (sim, net) -> {
+            if (created) {
+                throw new IllegalStateException("Trace_Recorder already records a protocol instance");
+            }
+            created = true;
+            Probe probe = new Probe(sim, net);
+            return new Recorder(f.create(probe, probe));
+        };
+    }
+
+    /**
+     * @return number of entries recorded
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return entries recorded, in call order
+     */
+    List<Entry> entries() {
+        return entries;
+    }
+
+    /**
+     * Writes the recording
+     *
+     * @param os output stream; not closed
+     * @throws IOException if the recording cannot be written
+     */
+    public void save(OutputStream os) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os, 1 << 16));
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeInt(entries.size());
+        for (Entry e : entries) {
+            out.writeByte(e.type);
+            out.writeLong(e.time);
+            out.writeInt(e.key);
+            out.writeInt(e.value);
+            out.writeBoolean(e.frame != null);
+            if (e.frame != null) {
+                Frame f = e.frame;
+                out.writeByte(f.kind());
+                out.writeInt(f.seq());
+                out.writeInt(f.ack());
+                out.writeInt(f.nak());
+                out.writeInt(f.rcvbufsize());
+                write_string(out, f.kind() == Frame.DATA_FRAME ? f.info() : null);
+            }
+            write_string(out, e.packet);
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes the recording to a file
+     *
+     * @param file_name name of the file, overwritten
+     * @throws IOException if the file cannot be written
+     */
+    public void save(String file_name) throws IOException {
+        try (OutputStream os = new FileOutputStream(file_name)) {
+            save(os);
+        }
+    }
+
+    private static void write_string(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) {
+            out.writeUTF(s);
+        }
+    }
+
+    /**
+     * @param type entry type
+     * @return true for the entries that are protocol callbacks
+     */
+    static boolean is_callback(int type) {
+        return type >= START && type <= END;
+    }
+
+    /**
+     * @param type entry type
+     * @return true for the entries that are protocol commands
+     */
+    static boolean is_command(int type) {
+        return type >= TO_PHYSICAL;
+    }
+
+    /**
+     * @param type entry type
+     * @return name of the entry type
+     */
+    static String name(int type) {
+        switch (type) {
+            case START: return "start_simulation";
+            case DATA_END: return "handle_Data_end";
+            case DATA_TIMER: return "handle_Data_Timer";
+            case ACK_TIMER: return "handle_ack_Timer";
+            case FRAME: return "from_physical_layer";
+            case END: return "end_simulation";
+            case MAX_SEQUENCE: return "get_max_sequence";
+            case SEND_WINDOW: return "get_send_window";
+            case IS_SENDING: return "is_sending_data";
+            case TIMER_ACTIVE: return "isactive_data_timer";
+            case FROM_NETWORK: return "from_network_layer";
+            case HAS_MORE: return "has_more_packets_to_send";
+            case RECV_BUFFER: return "get_recvbuffsize";
+            case TO_NETWORK: return "to_network_layer";
+            case TO_PHYSICAL: return "to_physical_layer";
+            case START_DATA_TIMER: return "start_data_timer";
+            case CANCEL_DATA_TIMER: return "cancel_data_timer";
+            case START_ACK_TIMER: return "start_ack_timer";
+            case CANCEL_ACK_TIMER: return "cancel_ack_timer";
+            case STOP: return "stop";
+            default: return "entry_" + type;
+        }
+    }
+
+    /**
+     * @param f frame
+     * @return text with the fields of the frame
+     */
+    static String describe(Frame f) {
+        switch (f.kind()) {
+            case Frame.DATA_FRAME:
+                return "DATA(seq=" + f.seq() + " ack=" + f.ack() + " rcvbuf=" + f.rcvbufsize() + " info=" + f.info() + ")";
+            case Frame.ACK_FRAME:
+                return "ACK(ack=" + f.ack() + " rcvbuf=" + f.rcvbufsize() + ")";
+            case Frame.NAK_FRAME:
+                return "NAK(nak=" + f.nak() + " rcvbuf=" + f.rcvbufsize() + ")";
+            default:
+                return "FRAME(kind=" + f.kind() + ")";
+        }
+    }
+
+    /**
+     * Compares the fields of two frames
+     */
+    static boolean same_frame(Frame a, Frame b) {
+        if (a.kind() != b.kind() || a.rcvbufsize() != b.rcvbufsize()) {
+            return false;
+        }
+        switch (a.kind()) {
+            case Frame.DATA_FRAME:
+                return a.seq() == b.seq() && a.ack() == b.ack()
+                        && (a.info() == null ? b.info() == null : a.info().equals(b.info()));
+            case Frame.ACK_FRAME:
+                return a.ack() == b.ack();
+            case Frame.NAK_FRAME:
+                return a.nak() == b.nak();
+            default:
+                return true;
+        }
+    }
+
+    private void add(int type, long time, int key, int value, Frame frame) {
+        entries.add(new Entry(type, time, key, value, frame));
+    }
+
+    private static int bit(boolean b) {
+        return b ? 1 : 0;
+    }
+
+    /**
+     * Layer between the protocol and the simulator / network layer; records
+     * the answers to the queries and the commands
+     */
+    private class Probe extends Simulator_Filter implements NetworkLayer {
+
+        Probe(Simulator sim, NetworkLayer net) {
+            super(sim);
+            this.net = net;
+            // configuracao, mesmo que o protocolo nao a pergunte
+            add(MAX_SEQUENCE, 0, 0, sim.get_max_sequence(), null);
+            add(SEND_WINDOW, 0, 0, sim.get_send_window(), null);
+        }
+
+        @Override
+        public int get_max_sequence() {
+            int v = sim.get_max_sequence();
+            add(MAX_SEQUENCE, 0, 0, v, null);
+            return v;
+        }
+
+        @Override
+        public int get_send_window() {
+            int v = sim.get_send_window();
+            add(SEND_WINDOW, 0, 0, v, null);
+            return v;
+        }
+
+        @Override
+        public boolean is_sending_data() {
+            boolean v = sim.is_sending_data();
+            add(IS_SENDING, 0, 0, bit(v), null);
+            return v;
+        }
+
+        @Override
+        public boolean to_physical_layer(Frame frame, boolean interrupt) {
+            boolean v = sim.to_physical_layer(frame, interrupt);
+            add(TO_PHYSICAL, 0, 0, bit(v), frame);
+            return v;
+        }
+
+        @Override
+        public void start_data_timer(int key) {
+            sim.start_data_timer(key);
+            add(START_DATA_TIMER, 0, key, 0, null);
+        }
+
+        @Override
+        public void cancel_data_timer(int key) {
+            sim.cancel_data_timer(key);
+            add(CANCEL_DATA_TIMER, 0, key, 0, null);
+        }
+
+        @Override
+        public boolean isactive_data_timer(int key) {
+            boolean v = sim.isactive_data_timer(key);
+            add(TIMER_ACTIVE, 0, key, bit(v), null);
+            return v;
+        }
+
+        @Override
+        public void start_ack_timer() {
+            sim.start_ack_timer();
+            add(START_ACK_TIMER, 0, 0, 0, null);
+        }
+
+        @Override
+        public void cancel_ack_timer() {
+            sim.cancel_ack_timer();
+            add(CANCEL_ACK_TIMER, 0, 0, 0, null);
+        }
+
+        @Override
+        public void stop() {
+            sim.stop();
+            add(STOP, 0, 0, 0, null);
+        }
+
+        /* NetworkLayer */
+        @Override
+        public String from_network_layer() {
+            String p = net.from_network_layer();
+            add(FROM_NETWORK, 0, 0, 0, null);
+            entries.get(entries.size() - 1).packet = p;
+            return p;
+        }
+
+        @Override
+        public boolean has_more_packets_to_send() {
+            boolean v = net.has_more_packets_to_send();
+            add(HAS_MORE, 0, 0, bit(v), null);
+            return v;
+        }
+
+        @Override
+        public int get_recvbuffsize() {
+            int v = net.get_recvbuffsize();
+            add(RECV_BUFFER, 0, 0, v, null);
+            return v;
+        }
+
+        @Override
+        public boolean to_network_layer(String packet) {
+            boolean v = net.to_network_layer(packet);
+            add(TO_NETWORK, 0, 0, bit(v), null);
+            entries.get(entries.size() - 1).packet = packet;
+            return v;
+        }
+
+        final NetworkLayer net;
+    }
+
+    /**
+     * Layer between the simulator and the protocol; records the callbacks
+     */
+    private class Recorder extends Callbacks_Filter {
+
+        Recorder(Callbacks protocol) {
+            super(protocol);
+        }
+
+        @Override
+        public void start_simulation(long time) {
+            add(START, time, 0, 0, null);
+            protocol.start_simulation(time);
+        }
+
+        @Override
+        public void handle_Data_end(long time, int seq) {
+            add(DATA_END, time, seq, 0, null);
+            protocol.handle_Data_end(time, seq);
+        }
+
+        @Override
+        public void handle_Data_Timer(long time, int key) {
+            add(DATA_TIMER, time, key, 0, null);
+            protocol.handle_Data_Timer(time, key);
+        }
+
+        @Override
+        public void handle_ack_Timer(long time) {
+            add(ACK_TIMER, time, 0, 0, null);
+            protocol.handle_ack_Timer(time);
+        }
+
+        @Override
+        public void from_physical_layer(long time, Frame frame) {
+            add(FRAME, time, 0, 0, frame);
+            protocol.from_physical_layer(time, frame);
+        }
+
+        @Override
+        public void end_simulation(long time) {
+            add(END, time, 0, 0, null);
+            protocol.end_simulation(time);
+        }
+    }
+
+    /* Variables */
+    /**
+     * Entries recorded, in call order
+     */
+    private final List<Entry> entries;
+    /**
+     * True after the recorded protocol instance was created
+     */
+    private boolean created;
+}
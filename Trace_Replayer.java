@@ -0,0 +1,540 @@
+/*
+ * Sistemas de Telecomunicacoes
+ *          2022/2023
+ */
+package protocol;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import simulator.Frame;
+import terminal.NetworkLayer;
+import terminal.Simulator;
+
+/**
+ * Replays a run recorded by Trace_Recorder on a fresh protocol instance,
+ * without the simulator: the recorded callbacks are called in order, at full
+ * speed, and the queries of the protocol are answered from the recorded
+ * state, whatever their order: the configuration, the latest values of
+ * is_sending_data() and get_recvbuffsize() recorded up to the point replayed,
+ * the packets of the network layer in order and the data timers started and
+ * not yet cancelled or expired.
+ *
+ * Only the commands of the protocol (frames sent, timers started and
+ * cancelled, stop) are checked against the recording, in order within each
+ * callback (commands on different timers may swap); the first difference throws an IllegalStateException that names
+ * the callback and the calls that diverged. Replaying the same recording on
+ * two versions of a protocol finds where their behaviour changes.
+ *
+ * Usage: java protocol.Trace_Replayer recording_file protocol [callbacks]
+ */
+public class Trace_Replayer {
+
+    /**
+     * @param recorder recording made in this JVM
+     */
+    public Trace_Replayer(Trace_Recorder recorder) {
+        this(recorder.entries());
+    }
+
+    private Trace_Replayer(List<Trace_Recorder.Entry> entries) {
+        this.entries = entries;
+        packets = new ArrayList<>();
+        deliveries = new ArrayList<>();
+        timers = new HashSet<>();
+        matched = new BitSet();
+        max_sequence = -1;
+        send_window = -1;
+        first_recvbuf = -1;
+        for (Trace_Recorder.Entry e : entries) {
+            switch (e.type) {
+                case Trace_Recorder.MAX_SEQUENCE:
+                    if (max_sequence < 0) {
+                        max_sequence = e.value;
+                    }
+                    break;
+                case Trace_Recorder.SEND_WINDOW:
+                    if (send_window < 0) {
+                        send_window = e.value;
+                    }
+                    break;
+                case Trace_Recorder.RECV_BUFFER:
+                    if (first_recvbuf < 0) {
+                        first_recvbuf = e.value;
+                    }
+                    break;
+                case Trace_Recorder.FROM_NETWORK:
+                    packets.add(e.packet);
+                    break;
+                case Trace_Recorder.TO_NETWORK:
+                    deliveries.add(e);
+                    break;
+                default:
+                    break;
+            }
+        }
+        verbose = false;
+        reset();
+    }
+
+    /**
+     * Reads a recording written by Trace_Recorder.save()
+     *
+     * @param is input stream; not closed
+     * @return replayer of the recording
+     * @throws IOException if the stream cannot be read or is not a recording
+     */
+    public static Trace_Replayer load(InputStream is) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(is, 1 << 16));
+        if (in.readInt() != Trace_Recorder.MAGIC || in.readShort() != Trace_Recorder.VERSION) {
+            throw new IOException("Not a protocol recording (version " + Trace_Recorder.VERSION + ")");
+        }
+        int n = in.readInt();
+        List<Trace_Recorder.Entry> entries = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            int type = in.readByte();
+            long time = in.readLong();
+            int key = in.readInt();
+            int value = in.readInt();
+            Frame frame = null;
+            if (in.readBoolean()) {
+                int kind = in.readByte();
+                int seq = in.readInt();
+                int ack = in.readInt();
+                int nak = in.readInt();
+                int rcvbuf = in.readInt();
+                String info = read_string(in);
+                frame = make_frame(kind, seq, ack, nak, rcvbuf, info);
+            }
+            Trace_Recorder.Entry e = new Trace_Recorder.Entry(type, time, key, value, frame);
+            e.packet = read_string(in);
+            entries.add(e);
+        }
+        return new Trace_Replayer(entries);
+    }
+
+    /**
+     * Reads a recording file
+     *
+     * @param file_name name of the file
+     * @return replayer of the recording
+     * @throws IOException if the file cannot be read or is not a recording
+     */
+    public static Trace_Replayer load(String file_name) throws IOException {
+        try (InputStream is = new FileInputStream(file_name)) {
+            return load(is);
+        }
+    }
+
+    private static String read_string(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static Frame make_frame(int kind, int seq, int ack, int nak, int rcvbuf, String info) throws IOException {
+        switch (kind) {
+            case Frame.DATA_FRAME:
+                return Frame.new_Data_Frame(seq, ack, rcvbuf, info);
+            case Frame.ACK_FRAME:
+                return Frame.new_Ack_Frame(ack, rcvbuf);
+            case Frame.NAK_FRAME:
+                return Frame.new_Nak_Frame(nak, rcvbuf);
+            default:
+                throw new IOException("Invalid frame kind " + kind);
+        }
+    }
+
+    /**
+     * Prints the protocol logs to System.out during the replay
+     *
+     * @param on true to print the logs
+     */
+    public void set_verbose(boolean on) {
+        verbose = on;
+    }
+
+    /**
+     * Replays the whole recording
+     *
+     * @param f factory of the protocol replayed
+     * @return number of callbacks replayed
+     * @throws IllegalStateException if the protocol diverges from the
+     * recording
+     */
+    public long replay(Protocol_Factory f) {
+        return replay(f, Long.MAX_VALUE);
+    }
+
+    /**
+     * Replays the first callbacks of the recording
+     *
+     * @param f factory of the protocol replayed
+     * @param max_callbacks number of callbacks replayed
+     * @return number of callbacks replayed
+     * @throws IllegalStateException if the protocol diverges from the
+     * recording
+     */
+    public long replay(Protocol_Factory f, long max_callbacks) {
+        reset();
+        Replay_Terminal t = new Replay_Terminal();
+        Callbacks protocol = f.create(t, t);
+        while (callbacks < max_callbacks) {
+            settle();
+            if (pos >= entries.size()) {
+                break;
+            }
+            Trace_Recorder.Entry e = entries.get(pos);
+            last_callback = pos++;
+            callbacks++;
+            switch (e.type) {
+                case Trace_Recorder.START:
+                    protocol.start_simulation(e.time);
+                    break;
+                case Trace_Recorder.DATA_END:
+                    protocol.handle_Data_end(e.time, e.key);
+                    break;
+                case Trace_Recorder.DATA_TIMER:
+                    timers.remove(e.key);     // o timer expirou
+                    protocol.handle_Data_Timer(e.time, e.key);
+                    break;
+                case Trace_Recorder.ACK_TIMER:
+                    protocol.handle_ack_Timer(e.time);
+                    break;
+                case Trace_Recorder.FRAME:
+                    protocol.from_physical_layer(e.time, e.frame);
+                    break;
+                default:
+                    protocol.end_simulation(e.time);
+                    break;
+            }
+        }
+        return callbacks;
+    }
+
+    /**
+     * @return index of the next entry of the recording
+     */
+    public int position() {
+        return pos;
+    }
+
+    /**
+     * @return number of entries of the recording
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    private void reset() {
+        pos = 0;
+        callbacks = 0;
+        last_callback = -1;
+        sending = false;
+        recvbuf = first_recvbuf;
+        next_packet = 0;
+        next_delivery = 0;
+        timers.clear();
+        matched.clear();
+    }
+
+    /**
+     * Advances to the next callback, taking the recorded answers on the way;
+     * a recorded command left means that the protocol did not make it
+     */
+    private void settle() {
+        while (pos < entries.size()) {
+            Trace_Recorder.Entry e = entries.get(pos);
+            if (Trace_Recorder.is_callback(e.type)) {
+                return;
+            }
+            if (Trace_Recorder.is_command(e.type)) {
+                if (!matched.get(pos)) {
+                    throw divergence(e, "no call");
+                }
+            } else {
+                take(e);
+            }
+            pos++;
+        }
+    }
+
+    /**
+     * Updates the state with a recorded answer
+     */
+    private void take(Trace_Recorder.Entry e) {
+        switch (e.type) {
+            case Trace_Recorder.IS_SENDING:
+                sending = e.value != 0;
+                break;
+            case Trace_Recorder.RECV_BUFFER:
+                recvbuf = e.value;
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Finds the latest answer recorded before the next command of the
+     * current callback, where the protocol is in the replay
+     *
+     * @param type entry type of the query
+     * @return entry with the answer, or null if the query was not recorded
+     * there
+     */
+    private Trace_Recorder.Entry ahead(int type) {
+        Trace_Recorder.Entry found = null;
+        int end = next_command(pos);
+        for (int i = pos; i < end; i++) {
+            if (entries.get(i).type == type) {
+                found = entries.get(i);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Takes the next command of the current callback, which must be the one
+     * made by the protocol; commands on different timers may come in any
+     * order, as their effect is the same
+     *
+     * @param type entry type of the command made by the protocol
+     * @param key timer key, or 0
+     * @param frame frame sent, or null
+     * @param call description of the call, for the error message
+     */
+    private Trace_Recorder.Entry command(int type, int key, Frame frame, String call) {
+        int i = next_command(pos);
+        Trace_Recorder.Entry e = i < entries.size() ? entries.get(i) : null;
+        if (e != null && e.type == type && e.key == key
+                && (frame == null || Trace_Recorder.same_frame(e.frame, frame))) {
+            while (pos < i) {
+                Trace_Recorder.Entry q = entries.get(pos++);
+                if (!Trace_Recorder.is_command(q.type)) {
+                    take(q);
+                }
+            }
+            pos++;
+            return e;
+        }
+        // procura a mesma ordem de timer mais a frente
+        for (int j = i; frame == null && j < entries.size() && is_timer(entries.get(j).type);
+                j = next_command(j + 1)) {
+            Trace_Recorder.Entry t = entries.get(j);
+            if (same_timer(t.type, t.key, type, key)) {
+                if (t.type != type || t.key != key) {
+                    break;      // outra ordem para o mesmo timer
+                }
+                matched.set(j);
+                return t;
+            }
+        }
+        throw divergence(e, call);
+    }
+
+    /**
+     * @param from index of the first entry searched
+     * @return index of the next command not yet matched in the current
+     * callback, or of the next callback or end of the recording
+     */
+    private int next_command(int from) {
+        int i = from;
+        while (i < entries.size() && !Trace_Recorder.is_callback(entries.get(i).type)
+                && (!Trace_Recorder.is_command(entries.get(i).type) || matched.get(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean is_timer(int type) {
+        return type >= Trace_Recorder.START_DATA_TIMER && type <= Trace_Recorder.CANCEL_ACK_TIMER;
+    }
+
+    private static boolean is_ack_timer(int type) {
+        return type == Trace_Recorder.START_ACK_TIMER || type == Trace_Recorder.CANCEL_ACK_TIMER;
+    }
+
+    private static boolean same_timer(int type1, int key1, int type2, int key2) {
+        return is_ack_timer(type1) == is_ack_timer(type2) && (is_ack_timer(type1) || key1 == key2);
+    }
+
+    /**
+     * @param value configuration value, or -1 if it was not recorded
+     */
+    private int config(int value, String call) {
+        if (value < 0) {
+            throw divergence(null, call);
+        }
+        return value;
+    }
+
+    private IllegalStateException divergence(Trace_Recorder.Entry expected, String call) {
+        String where = last_callback < 0 ? "in the constructor"
+                : "in callback " + callbacks + " (" + entries.get(last_callback) + ")";
+        return new IllegalStateException("Replay diverged at entry " + pos + " " + where
+                + ": recorded " + (expected == null ? "end of recording" : expected.toString())
+                + ", protocol made " + call);
+    }
+
+    /**
+     * Simulator and network layer answering from the recording
+     */
+    private class Replay_Terminal implements Simulator, NetworkLayer {
+
+        /* Simulator */
+        @Override
+        public void Log(String s) {
+            if (verbose) {
+                System.out.print(s);
+            }
+        }
+
+        @Override
+        public int get_max_sequence() {
+            return config(max_sequence, "get_max_sequence()");
+        }
+
+        @Override
+        public int get_send_window() {
+            return config(send_window, "get_send_window()");
+        }
+
+        @Override
+        public boolean is_sending_data() {
+            Trace_Recorder.Entry e = ahead(Trace_Recorder.IS_SENDING);
+            return e != null ? e.value != 0 : sending;
+        }
+
+        @Override
+        public boolean to_physical_layer(Frame frame, boolean interrupt) {
+            String call = "to_physical_layer(" + Trace_Recorder.describe(frame) + ")";
+            return command(Trace_Recorder.TO_PHYSICAL, 0, frame, call).value != 0;
+        }
+
+        @Override
+        public void start_data_timer(int key) {
+            command(Trace_Recorder.START_DATA_TIMER, key, null, "start_data_timer(" + key + ")");
+            timers.add(key);
+        }
+
+        @Override
+        public void cancel_data_timer(int key) {
+            command(Trace_Recorder.CANCEL_DATA_TIMER, key, null, "cancel_data_timer(" + key + ")");
+            timers.remove(key);
+        }
+
+        @Override
+        public boolean isactive_data_timer(int key) {
+            return timers.contains(key);
+        }
+
+        @Override
+        public void start_ack_timer() {
+            command(Trace_Recorder.START_ACK_TIMER, 0, null, "start_ack_timer()");
+        }
+
+        @Override
+        public void cancel_ack_timer() {
+            command(Trace_Recorder.CANCEL_ACK_TIMER, 0, null, "cancel_ack_timer()");
+        }
+
+        @Override
+        public void stop() {
+            command(Trace_Recorder.STOP, 0, null, "stop()");
+        }
+
+        /* NetworkLayer */
+        @Override
+        public String from_network_layer() {
+            return next_packet < packets.size() ? packets.get(next_packet++) : null;
+        }
+
+        @Override
+        public boolean has_more_packets_to_send() {
+            return next_packet < packets.size();
+        }
+
+        @Override
+        public int get_recvbuffsize() {
+            Trace_Recorder.Entry e = ahead(Trace_Recorder.RECV_BUFFER);
+            return e != null ? e.value : config(recvbuf, "get_recvbuffsize()");
+        }
+
+        @Override
+        public boolean to_network_layer(String packet) {
+            // aceita como na gravacao se for o mesmo pacote
+            if (next_delivery < deliveries.size()) {
+                Trace_Recorder.Entry e = deliveries.get(next_delivery);
+                if (e.packet == null ? packet == null : e.packet.equals(packet)) {
+                    next_delivery++;
+                    return e.value != 0;
+                }
+            }
+            return true;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: java protocol.Trace_Replayer recording_file protocol [callbacks]");
+            return;
+        }
+        Trace_Replayer r = load(args[0]);
+        long max = args.length > 2 ? Long.parseLong(args[2]) : Long.MAX_VALUE;
+        long t0 = System.nanoTime();
+        long n = r.replay(Local_Simulator.factory(args[1]), max);
+        long ns = System.nanoTime() - t0;
+        System.out.printf("%d callbacks (%d entries) replayed in %.1f ms%n", n, r.position(), ns / 1e6);
+    }
+
+    /* Variables */
+    /**
+     * Recording replayed
+     */
+    private final List<Trace_Recorder.Entry> entries;
+    /**
+     * Next entry of the recording
+     */
+    private int pos;
+    /**
+     * Callbacks replayed and index of the last one
+     */
+    private long callbacks;
+    private int last_callback;
+    private boolean verbose;
+    /**
+     * Configuration recorded (-1 if never queried)
+     */
+    private int max_sequence;
+    private int send_window;
+    private int first_recvbuf;
+    /**
+     * Latest answers recorded before the entry replayed
+     */
+    private boolean sending;
+    private int recvbuf;
+    /**
+     * Packets given by the network layer, and the next one
+     */
+    private final List<String> packets;
+    private int next_packet;
+    /**
+     * Deliveries to the network layer, with their answers, and the next one
+     */
+    private final List<Trace_Recorder.Entry> deliveries;
+    private int next_delivery;
+    /**
+     * Data timers started by the protocol and still running
+     */
+    private final Set<Integer> timers;
+    /**
+     * Commands matched ahead of their turn
+     */
+    private final BitSet matched;
+}
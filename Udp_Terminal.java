@@ -0,0 +1,472 @@
+/*
+ * Sistemas de Telecomunicacoes
+ *          2022/2023
+ */
+package protocol;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Arrays;
+import java.util.Random;
+import simulator.Frame;
+import terminal.NetworkLayer;
+import terminal.Simulator;
+
+/**
+ * Terminal that runs a protocol over UDP (e.g. on the loopback between two
+ * processes) instead of the course simulator, so the protocols can be
+ * measured as real ARQ stacks.
+ *
+ * One thread runs the event loop: it waits on a Selector for datagrams and
+ * for the next timer, decodes each datagram with Frame_Codec from a direct
+ * buffer and calls the protocol. The data timers and the ack timer are kept
+ * in a Timing_Wheel (the ack timer is the key max_sequence + 1). A frame is
+ * written to the socket at once and its transmission ends (handle_Data_end)
+ * right after the callback that sent it returns; a frame refused by a full
+ * socket buffer is lost, as in UDP.
+ *
+ * Each packet carries its number and the System.nanoTime() of its creation,
+ * so the receiver measures the latency; both processes must run on the same
+ * host for the clocks to match.
+ *
+ * Usage: java protocol.Udp_Terminal protocol send|recv local_port peer_port
+ * [packets] [loss]
+ */
+public class Udp_Terminal implements Simulator, NetworkLayer, Timeout_Control {
+
+    /**
+     * Parameters of a terminal
+     */
+    public static class Config {
+
+        /**
+         * Highest sequence number and sending window
+         */
+        public int max_sequence = 7;
+        public int send_window = 4;
+        /**
+         * Timer durations (ms)
+         */
+        public long data_timeout = 50;
+        public long ack_timeout = 1;
+        /**
+         * Packets sent and expected from the peer, and their size (bytes)
+         */
+        public int packets = 0;
+        public int expected = 0;
+        public int packet_size = 100;
+        /**
+         * Receive buffer advertised to the protocol (packets)
+         */
+        public int recv_buffer = 8;
+        /**
+         * Probability of dropping a received frame, to test the
+         * retransmissions on a loopback that does not lose
+         */
+        public double loss = 0;
+        public long seed = 1;
+        /**
+         * Time (ms) the terminal keeps running after it is done, to answer
+         * retransmissions of the peer, and maximum duration of a run
+         */
+        public long linger = 500;
+        public long max_time = 600000;
+        /**
+         * Print the protocol logs to System.out
+         */
+        public boolean verbose = false;
+    }
+
+    /**
+     * @param config parameters of the terminal
+     * @param local local address
+     * @param peer address of the peer terminal
+     * @param f factory of the protocol
+     * @throws IOException if the socket cannot be opened
+     */
+    public Udp_Terminal(Config config, InetSocketAddress local, InetSocketAddress peer,
+            Protocol_Factory f) throws IOException {
+        if (config.max_sequence > Frame_Codec.MAX_SEQUENCE) {
+            throw new IllegalArgumentException("max_sequence above " + Frame_Codec.MAX_SEQUENCE);
+        }
+        this.config = config;
+        rnd = new Random(config.seed);
+        channel = DatagramChannel.open();
+        channel.bind(local);
+        channel.connect(peer);
+        channel.configureBlocking(false);
+        selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_READ);
+        tx = ByteBuffer.allocateDirect(Frame_Codec.frame_bytes(Frame_Codec.MAX_PAYLOAD));
+        rx = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+        codec = new Frame_Codec();
+        ack_key = config.max_sequence + 1;
+        data_timeout = config.data_timeout;
+        timers = new Timing_Wheel(config.max_sequence + 2, 256, 1, 0);
+        expiry = this::expired;
+        data_ends = new int[config.max_sequence + 1];
+        latency = new long[config.expected];
+        StringBuilder sb = new StringBuilder(config.packet_size);
+        for (int i = 0; i < config.packet_size; i++) {
+            sb.append((char) ('a' + i % 26));
+        }
+        padding = sb.toString();
+        t0 = System.nanoTime();
+        protocol = f.create(this, this);
+    }
+
+    /**
+     * Runs the event loop until this terminal sent and received all its
+     * packets, plus config.linger, until config.max_time or until the protocol
+     * calls stop()
+     *
+     * @return time (ms) when the last packet was sent or received
+     * @throws IOException on a socket error
+     */
+    public long run() throws IOException {
+        now = clock();
+        protocol.start_simulation(now);
+        end_data();
+        long done_at = -1;
+        while (now < config.max_time && !stopped) {
+            long wait = Math.min(timers.next_deadline() - now, MAX_WAIT_MS);
+            if (wait > 0) {
+                selector.select(wait);
+            } else {
+                selector.selectNow();
+            }
+            selector.selectedKeys().clear();
+            now = clock();
+            receive();
+            timers.advance(now, expiry);
+            if (done_at < 0 && done()) {
+                done_at = now;
+                finish_time = now;
+            } else if (done_at >= 0 && now - done_at >= config.linger) {
+                break;
+            }
+        }
+        protocol.end_simulation(now);
+        channel.close();
+        selector.close();
+        return finish_time;
+    }
+
+    /**
+     * Reads all the datagrams waiting and gives the frames to the protocol
+     */
+    private void receive() throws IOException {
+        while (true) {
+            rx.clear();
+            int n;
+            try {
+                n = channel.read(rx);
+            } catch (PortUnreachableException e) {
+                continue;   // o par ainda nao abriu o socket
+            }
+            if (n <= 0) {
+                return;
+            }
+            rx.flip();
+            Frame f = codec.decode(rx);
+            if (f == null) {
+                frames_invalid++;   // CRC errado ou datagrama truncado
+                continue;
+            }
+            frames_received++;
+            if (config.loss > 0 && rnd.nextDouble() < config.loss) {
+                frames_dropped++;
+                continue;
+            }
+            protocol.from_physical_layer(now, f);
+            end_data();
+        }
+    }
+
+    /**
+     * Calls the protocol callback of an expired timer
+     */
+    private void expired(int key, long deadline) {
+        if (key == ack_key) {
+            protocol.handle_ack_Timer(now);
+        } else {
+            protocol.handle_Data_Timer(now, key);
+        }
+        end_data();
+    }
+
+    /**
+     * Ends the transmissions of the data frames sent by the last callback
+     */
+    private void end_data() {
+        while (data_end_count > 0) {
+            int seq = data_ends[data_end_first];
+            data_end_first = (data_end_first + 1) % data_ends.length;
+            data_end_count--;
+            busy = false;
+            protocol.handle_Data_end(now, seq);
+        }
+    }
+
+    /**
+     * @return true when all the packets were sent, acknowledged and received
+     */
+    private boolean done() {
+        for (int k = 0; k <= config.max_sequence; k++) {
+            if (timers.is_active(k)) {
+                return false;   // tramas por confirmar
+            }
+        }
+        return generated == config.packets && !busy && delivered == config.expected;
+    }
+
+    private long clock() {
+        return (System.nanoTime() - t0) / 1000000;
+    }
+
+    /* Simulator */
+    @Override
+    public void Log(String s) {
+        if (config.verbose) {
+            System.out.print(now + ": " + s);
+        }
+    }
+
+    @Override
+    public int get_max_sequence() {
+        return config.max_sequence;
+    }
+
+    @Override
+    public int get_send_window() {
+        return config.send_window;
+    }
+
+    @Override
+    public boolean is_sending_data() {
+        return busy;
+    }
+
+    @Override
+    public boolean to_physical_layer(Frame frame, boolean interrupt) {
+        if (busy && !interrupt) {
+            Log("Frame discarded - transmitter busy\n");
+            return false;
+        }
+        tx.clear();
+        codec.encode(frame, tx);
+        tx.flip();
+        try {
+            if (channel.write(tx) == 0) {
+                frames_overflow++;  // buffer do socket cheio - perdida, como no UDP
+            }
+        } catch (PortUnreachableException e) {
+            frames_overflow++;  // o par ainda nao abriu o socket
+        } catch (IOException e) {
+            Log("Send failed: " + e + "\n");
+            return false;
+        }
+        frames_sent++;
+        if (frame.kind() == Frame.DATA_FRAME) {
+            data_frames_sent++;
+            busy = true;
+            data_ends[(data_end_first + data_end_count) % data_ends.length] = frame.seq();
+            data_end_count++;
+        }
+        return true;
+    }
+
+    @Override
+    public void start_data_timer(int key) {
+        timers.start(key, now + data_timeout);
+    }
+
+    @Override
+    public void cancel_data_timer(int key) {
+        timers.cancel(key);
+    }
+
+    @Override
+    public boolean isactive_data_timer(int key) {
+        return timers.is_active(key);
+    }
+
+    @Override
+    public void start_ack_timer() {
+        timers.start(ack_key, now + config.ack_timeout);
+    }
+
+    @Override
+    public void cancel_ack_timer() {
+        timers.cancel(ack_key);
+    }
+
+    @Override
+    public void stop() {
+        stopped = true;     // o ciclo acaba depois deste callback
+    }
+
+    /* Timeout_Control */
+    @Override
+    public long data_timeout() {
+        return data_timeout;
+    }
+
+    @Override
+    public void set_data_timeout(long timeout) {
+        data_timeout = Math.max(1, timeout);
+    }
+
+    /* NetworkLayer */
+    @Override
+    public String from_network_layer() {
+        if (generated >= config.packets) {
+            return null;
+        }
+        // "<id>:<nanoTime>:" para medir a latencia no recetor
+        String id = generated + ":" + System.nanoTime() + ":";
+        generated++;
+        return id + padding.substring(Math.min(id.length(), padding.length()));
+    }
+
+    @Override
+    public boolean has_more_packets_to_send() {
+        return generated < config.packets;
+    }
+
+    @Override
+    public int get_recvbuffsize() {
+        return config.recv_buffer;
+    }
+
+    @Override
+    public boolean to_network_layer(String packet) {
+        int a = packet.indexOf(':');
+        int b = a > 0 ? packet.indexOf(':', a + 1) : -1;
+        int id = b > 0 ? Integer.parseInt(packet.substring(0, a)) : -1;
+        if (id != delivered || delivered >= latency.length) {
+            out_of_order++;   // duplicado ou fora de ordem
+            return true;
+        }
+        latency[delivered] = System.nanoTime() - Long.parseLong(packet.substring(a + 1, b));
+        delivered++;
+        return true;
+    }
+
+    /**
+     * @return latencies (ns) of the packets received, in order
+     */
+    public long[] latencies() {
+        return Arrays.copyOf(latency, delivered);
+    }
+
+    /**
+     * @return protocol instance of this terminal
+     */
+    public Callbacks protocol() {
+        return protocol;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4) {
+            System.err.println("Usage: java protocol.Udp_Terminal protocol send|recv local_port peer_port [packets] [loss]");
+            return;
+        }
+        Config config = new Config();
+        int packets = args.length > 4 ? Integer.parseInt(args[4]) : 10000;
+        boolean sender = args[1].equals("send");
+        config.packets = sender ? packets : 0;
+        config.expected = sender ? 0 : packets;
+        config.loss = args.length > 5 ? Double.parseDouble(args[5]) : config.loss;
+        config.seed = sender ? 1 : 2;
+        InetSocketAddress local = new InetSocketAddress("127.0.0.1", Integer.parseInt(args[2]));
+        InetSocketAddress peer = new InetSocketAddress("127.0.0.1", Integer.parseInt(args[3]));
+        Udp_Terminal t = new Udp_Terminal(config, local, peer, Local_Simulator.factory(args[0]));
+        long ms = t.run();
+        double s = Math.max(ms, 1) / 1000.0;
+        if (sender) {
+            System.out.printf("%s send: %d packets in %.3f s (%.0f packets/s), %d data frames sent, %d frames received%n",
+                    args[0], t.generated, s, t.generated / s, t.data_frames_sent, t.frames_received);
+            return;
+        }
+        long[] lat = t.latencies();
+        Arrays.sort(lat);
+        System.out.printf("%s recv: %d/%d packets in %.3f s (%.0f packets/s), latency avg %.1f us, "
+                + "p50 %.1f us, p99 %.1f us, %d frames sent, %d dropped, %d out of order%n",
+                args[0], t.delivered, packets, s, t.delivered / s,
+                lat.length > 0 ? Arrays.stream(lat).average().getAsDouble() / 1e3 : 0,
+                lat.length > 0 ? lat[lat.length / 2] / 1e3 : 0,
+                lat.length > 0 ? lat[(int) (lat.length * 0.99)] / 1e3 : 0,
+                t.frames_sent, t.frames_dropped, t.out_of_order);
+    }
+
+    /* Variables */
+    /**
+     * Largest datagram read
+     */
+    private static final int MAX_DATAGRAM = 65536;
+    /**
+     * Longest wait in the selector, so the end of the run is checked
+     */
+    private static final long MAX_WAIT_MS = 100;
+    private final Config config;
+    private final Random rnd;
+    private final DatagramChannel channel;
+    private final Selector selector;
+    /**
+     * Direct buffers of the datagram sent and received
+     */
+    private final ByteBuffer tx, rx;
+    private final Frame_Codec codec;
+    /**
+     * Data timers (keys 0 to max_sequence) and ack timer (ack_key)
+     */
+    private final Timing_Wheel timers;
+    private final int ack_key;
+    /**
+     * Duration of the data timers, config.data_timeout unless the protocol
+     * changes it
+     */
+    private long data_timeout;
+    private final Timing_Wheel.Expiry expiry;
+    /**
+     * Sequence numbers of the data frames sent whose transmission did not end
+     * yet (circular queue)
+     */
+    private final int[] data_ends;
+    private int data_end_first, data_end_count;
+    /**
+     * A data frame is being sent
+     */
+    private boolean busy;
+    /**
+     * The protocol called stop()
+     */
+    private boolean stopped;
+    private final Callbacks protocol;
+    /**
+     * Start of the run (System.nanoTime()), current time and time the last
+     * packet was sent and acknowledged or received (ms)
+     */
+    private final long t0;
+    private long now, finish_time;
+    /**
+     * Packets taken by the protocol, and delivered by it in order with their
+     * latencies (ns)
+     */
+    private int generated, delivered;
+    private final long[] latency;
+    /**
+     * Payload filler
+     */
+    private final String padding;
+    /**
+     * Counters
+     */
+    public long frames_sent, data_frames_sent, frames_overflow, frames_received, frames_dropped, frames_invalid, out_of_order;
+}
@@ -18,6 +18,36 @@ public class Utopian_rcv extends Base_Protocol implements Callbacks {
     public Utopian_rcv(Simulator _sim, NetworkLayer _net) {
         super(_sim, _net);      // Calls the constructor of Base_Protocol
         frame_expected = 0;     // The first sequence number expected
+        ack_policy = null;      // The utopian receiver does not send ACKs
+        trace = null;
+        unpacker = null;
+    }
+
+    /**
+     * Selects the acknowledgement policy of the receiver
+     * @param policy policy used to acknowledge the data frames received, or
+     *      null to never send ACKs
+     */
+    public void set_ack_policy(Ack_Policy policy) {
+        ack_policy = policy;
+    }
+
+    /**
+     * Enables frame batching: the data frames carry several packets packed by
+     * a Packet_Batcher at the sender
+     * @param on true to unpack the data frames received
+     */
+    public void set_batching(boolean on) {
+        unpacker = on ? new Packet_Batcher() : null;
+    }
+
+    /**
+     * Sends the events of the protocol to a binary trace instead of the
+     * simulator log
+     * @param trace event trace, or null to write to the simulator log
+     */
+    public void set_trace(Event_Trace trace) {
+        this.trace = trace;
     }
 
     /**
@@ -38,7 +68,7 @@ public class Utopian_rcv extends Base_Protocol implements Callbacks {
      */
     @Override
     public void handle_Data_end(long time, int seq) {
-        sim.Log(time + " DATA_END(" + seq + ") not expected\n");
+        Event_Trace.log(trace, sim, time, Event_Trace.DATA_END_UNEXPECTED, seq, -1);
     }
 
     /**
@@ -48,7 +78,7 @@ public class Utopian_rcv extends Base_Protocol implements Callbacks {
      */
     @Override
     public void handle_Data_Timer(long time, int key) {
-        sim.Log(time + " Data Timeout not expected\n");
+        Event_Trace.log(trace, sim, time, Event_Trace.DATA_TIMEOUT_UNEXPECTED, key, -1);
     }
 
     /**
@@ -57,7 +87,21 @@ public class Utopian_rcv extends Base_Protocol implements Callbacks {
      */
     @Override
     public void handle_ack_Timer(long time) {
-        sim.Log(time + " ACK Timeout not expected\n");
+        if (ack_policy == null) {
+            Event_Trace.log(trace, sim, time, Event_Trace.ACK_TIMEOUT_UNEXPECTED, -1, -1);
+        } else if (ack_policy.ack_on_timer()) {
+            send_ack_frame();
+        }
+    }
+
+    /**
+     * Sends an ACK frame acknowledging the last frame received in order
+     */
+    private void send_ack_frame() {
+        if (!sim.is_sending_data()) {
+            sim.to_physical_layer(Frame.new_Ack_Frame(prev_seq(frame_expected), net.get_recvbuffsize()), false);
+            ack_policy.on_ack_sent();
+        }
     }
     
     /**
@@ -69,13 +113,26 @@ public class Utopian_rcv extends Base_Protocol implements Callbacks {
     public void from_physical_layer(long time, Frame frame) {
         if (frame.kind() == Frame.DATA_FRAME) {     // Check the frame kind
             DataFrameIF dframe= frame;  // Auxiliary variable to access the Data frame fields.
-            if (dframe.seq() == frame_expected) {    // Check the sequence number
+            boolean in_order = dframe.seq() == frame_expected;
+            if (in_order) {    // Check the sequence number
                 // Send the frame to the network layer
-                if (net.to_network_layer(dframe.info())) {
+                if (unpacker != null ? unpacker.deliver(net, dframe.info()) : net.to_network_layer(dframe.info())) {
                     //
                     frame_expected = next_seq(frame_expected);
                 }
             }
+            if (ack_policy != null) {
+                switch (ack_policy.on_data_frame(in_order)) {
+                    case Ack_Policy.SEND_ACK:
+                        send_ack_frame();
+                        break;
+                    case Ack_Policy.START_TIMER:
+                        sim.start_ack_timer();
+                        break;
+                    default:
+                        break;
+                }
+            }
         }
     }
 
@@ -86,6 +143,9 @@ public class Utopian_rcv extends Base_Protocol implements Callbacks {
     @Override
     public void end_simulation(long time) {
         sim.Log("Stopping simulation\n");
+        if (trace != null) {
+            trace.flush();
+        }
     }
     
     
@@ -105,4 +165,19 @@ public class Utopian_rcv extends Base_Protocol implements Callbacks {
      * Expected sequence number of the next data frame received
      */
     private int frame_expected;
+    
+    /**
+     * Acknowledgement policy of the receiver, null if no ACKs are sent
+     */
+    private Ack_Policy ack_policy;
+    
+    /**
+     * Event trace, null to write the events to the simulator log
+     */
+    private Event_Trace trace;
+    
+    /**
+     * Unpacks the data frames carrying packed packets, null if not used
+     */
+    private Packet_Batcher unpacker;
 }
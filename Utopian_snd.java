@@ -18,6 +18,27 @@ public class Utopian_snd extends Base_Protocol implements Callbacks {
     public Utopian_snd(Simulator _sim, NetworkLayer _net) {
         super(_sim, _net);      // Calls the constructor of Base_Protocol
         next_frame_to_send = 0;     // First frame sent is 0
+        trace = null;
+        batcher = null;
+    }
+
+    /**
+     * Enables frame batching: several packets are packed in each data frame;
+     * the receiver must also use batching
+     * @param batcher batcher of this sender, or null to send one packet per
+     *      frame
+     */
+    public void set_batching(Packet_Batcher batcher) {
+        this.batcher = batcher;
+    }
+
+    /**
+     * Sends the events of the protocol to a binary trace instead of the
+     * simulator log
+     * @param trace event trace, or null to write to the simulator log
+     */
+    public void set_trace(Event_Trace trace) {
+        this.trace = trace;
     }
 
     
@@ -29,7 +50,7 @@ public class Utopian_snd extends Base_Protocol implements Callbacks {
         // We can only send one Data packet at a time
         //   you must wait for the DATA_END event before transmitting another one
         //   otherwise the first packet is lost in the channel
-        String packet= net.from_network_layer();
+        String packet= batcher != null ? batcher.next_frame(net) : net.from_network_layer();
         if (packet != null) {
             // The ACK field of the DATA frame is always the sequence number before zero, because no packets will be received
             Frame frame = Frame.new_Data_Frame(next_frame_to_send /*seq*/, 
@@ -71,7 +92,7 @@ public class Utopian_snd extends Base_Protocol implements Callbacks {
      */
     @Override
     public void handle_Data_Timer(long time, int key) {
-        sim.Log(time + " Data Timeout not expected\n");
+        Event_Trace.log(trace, sim, time, Event_Trace.DATA_TIMEOUT_UNEXPECTED, key, -1);
     }
 
     /**
@@ -80,7 +101,7 @@ public class Utopian_snd extends Base_Protocol implements Callbacks {
      */
     @Override
     public void handle_ack_Timer(long time) {
-        sim.Log(time + " ACK Timeout not expected\n");
+        Event_Trace.log(trace, sim, time, Event_Trace.ACK_TIMEOUT_UNEXPECTED, -1, -1);
     }
     
     /**
@@ -90,7 +111,8 @@ public class Utopian_snd extends Base_Protocol implements Callbacks {
      */
     @Override
     public void from_physical_layer(long time, Frame frame) {
-        sim.Log(time + " protocol Utopian_snd received: " + frame.toString() +" - not expected\n");
+        Event_Trace.log(trace, sim, time, Event_Trace.FRAME_UNEXPECTED,
+                frame.kind() == Frame.DATA_FRAME ? frame.seq() : -1, frame.kind() == Frame.ACK_FRAME ? frame.ack() : -1);
     }
 
     /**
@@ -100,6 +122,9 @@ public class Utopian_snd extends Base_Protocol implements Callbacks {
     @Override
     public void end_simulation(long time) {
         sim.Log("Stopping simulation\n");
+        if (trace != null) {
+            trace.flush();
+        }
     }
     
     
@@ -119,4 +144,14 @@ public class Utopian_snd extends Base_Protocol implements Callbacks {
      * Sequence number of the next data frame
      */
     private int next_frame_to_send;    
+    
+    /**
+     * Event trace, null to write the events to the simulator log
+     */
+    private Event_Trace trace;
+    
+    /**
+     * Packs several packets per data frame, null if not used
+     */
+    private Packet_Batcher batcher;
 }
@@ -0,0 +1,145 @@
+/*
+ * Sistemas de Telecomunicacoes
+ *          2022/2023
+ */
+package protocol;
+
+/**
+ * Sending buffer for the frames of a sliding window, stored in a ring sized
+ * to the window instead of the whole sequence space.
+ *
+ * The head holds the oldest frame not yet acknowledged (ack_expected); new
+ * packets are appended at the tail with the next sequence number. No objects
+ * are allocated after construction.
+ */
+public class Window_Buffer {
+
+    /**
+     * @param capacity maximum number of frames held (the sending window)
+     * @param max_sequence highest sequence number used by the protocol
+     */
+    public Window_Buffer(int capacity, int max_sequence) {
+        ring = new String[capacity];
+        modulus = max_sequence + 1;
+        head = 0;
+        size = 0;
+        first_seq = 0;
+    }
+
+    /**
+     * Appends a packet to the tail of the window; it gets sequence number
+     * end_seq()
+     *
+     * @param packet packet to store
+     * @return true if stored, false if the window is full
+     */
+    public boolean add(String packet) {
+        if (size == ring.length) {
+            return false;
+        }
+        ring[(head + size) % ring.length] = packet;
+        size++;
+        return true;
+    }
+
+    /**
+     * Returns the packet with sequence number seq
+     *
+     * @param seq sequence number
+     * @return the packet, or null if seq is not in the buffer
+     */
+    public String get(int seq) {
+        int offset = offset(seq);
+        return offset < size ? ring[(head + offset) % ring.length] : null;
+    }
+
+    /**
+     * Checks if the packet with sequence number seq is in the buffer
+     *
+     * @param seq sequence number
+     * @return true if it is stored
+     */
+    public boolean contains(int seq) {
+        return offset(seq) < size;
+    }
+
+    /**
+     * Releases the packets before seq, moving the head of the window to seq
+     *
+     * @param seq sequence number of the new head (ack_expected)
+     */
+    public void release_until(int seq) {
+        int n = Math.min(offset(seq), size);
+        for (int i = 0; i < n; i++) {
+            ring[head] = null;
+            head = (head + 1) % ring.length;
+        }
+        size -= n;
+        first_seq = seq;
+    }
+
+    /**
+     * @return sequence number of the head of the window
+     */
+    public int first_seq() {
+        return first_seq;
+    }
+
+    /**
+     * @return sequence number that the next packet added will get
+     */
+    public int end_seq() {
+        return (first_seq + size) % modulus;
+    }
+
+    /**
+     * @return number of packets stored
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return true if no packet is stored
+     */
+    public boolean is_empty() {
+        return size == 0;
+    }
+
+    /**
+     * @return true if the window is full
+     */
+    public boolean is_full() {
+        return size == ring.length;
+    }
+
+    /**
+     * Distance from the head of the window to seq, in the circular sequence
+     * space
+     */
+    private int offset(int seq) {
+        return (seq - first_seq + modulus) % modulus;
+    }
+
+    /* Variables */
+    /**
+     * Ring holding the packets of the window
+     */
+    private final String[] ring;
+    /**
+     * Size of the sequence space (max_sequence + 1)
+     */
+    private final int modulus;
+    /**
+     * Slot of the ring holding the head of the window
+     */
+    private int head;
+    /**
+     * Number of packets stored
+     */
+    private int size;
+    /**
+     * Sequence number of the head of the window
+     */
+    private int first_seq;
+}
@@ -0,0 +1,134 @@
+/*
+ * Sistemas de Telecomunicacoes
+ *          2022/2023
+ */
+package protocol;
+
+/**
+ * Dynamic sending window for the sliding window protocols: slow start and
+ * additive increase / multiplicative decrease, as in TCP congestion control.
+ *
+ * The window starts at one frame and grows by one frame per frame
+ * acknowledged up to the threshold (slow start), then by one frame per window
+ * acknowledged. A NAK halves it; a timeout sets the threshold to half the
+ * window and restarts from one frame. Only the first loss is counted until an
+ * ACK advances the window again, so a burst of losses shrinks it once.
+ *
+ * The window never exceeds the configured maximum (the simulator window).
+ * window() can be read from any thread as a metric while the simulation runs.
+ */
+public class Window_Controller {
+
+    /**
+     * @param max_window largest window allowed (frames)
+     */
+    public Window_Controller(int max_window) {
+        if (max_window < 1) {
+            throw new IllegalArgumentException("Invalid window " + max_window);
+        }
+        this.max_window = max_window;
+        cwnd = 1;
+        ssthresh = max_window;
+        in_loss = false;
+        window = 1;
+        increases = 0;
+        decreases = 0;
+    }
+
+    /**
+     * Called when an ACK confirms new frames
+     *
+     * @param frames number of frames acknowledged
+     */
+    public void on_ack(int frames) {
+        if (frames <= 0) {
+            return;
+        }
+        in_loss = false;
+        for (int i = 0; i < frames && cwnd < max_window; i++) {
+            cwnd += cwnd < ssthresh ? 1 : 1 / cwnd;  // slow start / aumento aditivo
+        }
+        update(Math.min(cwnd, max_window));
+    }
+
+    /**
+     * Called when a NAK reports a lost frame: the window is halved
+     */
+    public void on_loss() {
+        if (in_loss) {
+            return;     // a mesma rajada de perdas
+        }
+        in_loss = true;
+        ssthresh = Math.max(1, cwnd / 2);
+        update(ssthresh);
+    }
+
+    /**
+     * Called when a retransmission timer expires: the window restarts from
+     * one frame, in slow start up to half the previous window
+     */
+    public void on_timeout() {
+        if (!in_loss) {
+            ssthresh = Math.max(1, cwnd / 2);
+        }
+        in_loss = true;
+        update(1);
+    }
+
+    private void update(double w) {
+        int before = window;
+        cwnd = w;
+        window = Math.max(1, (int) w);
+        if (window > before) {
+            increases++;
+        } else if (window < before) {
+            decreases++;
+        }
+    }
+
+    /**
+     * @return current window (frames)
+     */
+    public int window() {
+        return window;
+    }
+
+    /**
+     * @return slow start threshold (frames)
+     */
+    public double ssthresh() {
+        return ssthresh;
+    }
+
+    /**
+     * @return text with the window state, for the simulation log
+     */
+    @Override
+    public String toString() {
+        return String.format("window %d (threshold %.1f, max %d), %d increases, %d decreases",
+                window, ssthresh, max_window, increases, decreases);
+    }
+
+    /* Variables */
+    /**
+     * Largest window allowed
+     */
+    private final int max_window;
+    /**
+     * Window with fractional growth, and slow start threshold
+     */
+    private double cwnd;
+    private double ssthresh;
+    /**
+     * True after a loss, until an ACK advances the window
+     */
+    private boolean in_loss;
+    /**
+     * Window in frames, read by other threads as a metric
+     */
+    private volatile int window;
+    /**
+     * Number of times the window grew and shrank
+     */
+    private long increases, decreases;
+}